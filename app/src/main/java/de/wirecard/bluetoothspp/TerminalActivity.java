@@ -28,14 +28,20 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import de.wirecard.bluetoothspp.library.BluetoothConnectionManager;
 import de.wirecard.bluetoothspp.library.BluetoothSPP;
 import de.wirecard.bluetoothspp.library.BluetoothSPP.BluetoothConnectionListener;
 import de.wirecard.bluetoothspp.library.BluetoothSPP.OnDataReceivedListener;
 import de.wirecard.bluetoothspp.library.BluetoothState;
 import de.wirecard.bluetoothspp.library.DeviceList;
 
+// Uses the process wide connection, it survives rotation and stays up for
+// a while after leaving the screen
 public class TerminalActivity extends Activity {
+    BluetoothConnectionManager manager;
     BluetoothSPP bt;
+    OnDataReceivedListener dataListener;
+    BluetoothConnectionListener connectionListener;
 
     TextView textStatus, textRead;
     EditText etMessage;
@@ -51,7 +57,8 @@ public class TerminalActivity extends Activity {
         textStatus = (TextView)findViewById(R.id.textStatus);
         etMessage = (EditText)findViewById(R.id.etMessage);
 
-        bt = new BluetoothSPP(this);
+        manager = BluetoothConnectionManager.getInstance(this);
+        bt = manager.getBluetooth();
 
         if(!bt.isBluetoothAvailable()) {
             Toast.makeText(getApplicationContext()
@@ -60,13 +67,14 @@ public class TerminalActivity extends Activity {
             finish();
         }
 
-        bt.setOnDataReceivedListener(new OnDataReceivedListener() {
+        dataListener = new OnDataReceivedListener() {
             public void onDataReceived(byte[] data, int length) {
                 textRead.append(new String(data, 0, length) + "\n");
             }
-        });
+        };
+        bt.addOnDataReceivedListener(dataListener);
 
-        bt.setBluetoothConnectionListener(new BluetoothConnectionListener() {
+        connectionListener = new BluetoothConnectionListener() {
             public void onDeviceDisconnected() {
                 textStatus.setText("Status : Not connect");
                 menu.clear();
@@ -82,12 +90,19 @@ public class TerminalActivity extends Activity {
                 menu.clear();
                 getMenuInflater().inflate(R.menu.menu_disconnection, menu);
             }
-        });
+        };
+        bt.addBluetoothConnectionListener(connectionListener);
+
+        if(bt.getServiceState() == BluetoothState.STATE_CONNECTED)
+            textStatus.setText("Status : Connected to " + bt.getConnectedDeviceName());
     }
 
     public boolean onCreateOptionsMenu(Menu menu) {
         this.menu = menu;
-        getMenuInflater().inflate(R.menu.menu_connection, menu);
+        if(bt.getServiceState() == BluetoothState.STATE_CONNECTED)
+            getMenuInflater().inflate(R.menu.menu_disconnection, menu);
+        else
+            getMenuInflater().inflate(R.menu.menu_connection, menu);
         return true;
     }
 
@@ -116,23 +131,28 @@ public class TerminalActivity extends Activity {
 
     public void onDestroy() {
         super.onDestroy();
-        bt.stopService();
+        // The connection stays, only this screen goes
+        bt.removeOnDataReceivedListener(dataListener);
+        bt.removeBluetoothConnectionListener(connectionListener);
     }
 
     public void onStart() {
         super.onStart();
+        manager.attach(this);
         if (!bt.isBluetoothEnabled()) {
             Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(intent, BluetoothState.REQUEST_ENABLE_BT);
         } else {
-            if(!bt.isServiceAvailable()) {
-                bt.setupService();
-                bt.startService(BluetoothState.DEVICE_ANDROID);
-                setup();
-            }
+            manager.start(BluetoothState.DEVICE_ANDROID);
+            setup();
         }
     }
 
+    public void onStop() {
+        super.onStop();
+        manager.detach(this);
+    }
+
     public void setup() {
         Button btnSend = (Button)findViewById(R.id.btnSend);
         btnSend.setOnClickListener(new OnClickListener(){
@@ -151,8 +171,7 @@ public class TerminalActivity extends Activity {
                 bt.connect(data);
         } else if(requestCode == BluetoothState.REQUEST_ENABLE_BT) {
             if(resultCode == Activity.RESULT_OK) {
-                bt.setupService();
-                bt.startService(BluetoothState.DEVICE_ANDROID);
+                manager.start(BluetoothState.DEVICE_ANDROID);
                 setup();
             } else {
                 Toast.makeText(getApplicationContext()
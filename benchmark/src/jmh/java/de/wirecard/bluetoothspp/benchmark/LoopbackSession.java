@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.benchmark;
+
+import de.wirecard.bluetoothspp.library.BluetoothSPP;
+import de.wirecard.bluetoothspp.library.BluetoothService;
+import de.wirecard.bluetoothspp.library.BluetoothState;
+import de.wirecard.bluetoothspp.library.LoopbackTransport;
+import de.wirecard.bluetoothspp.library.Transport;
+
+import java.io.IOException;
+
+// A BluetoothService or a whole BluetoothSPP connected over a
+// LoopbackTransport to a raw link, the benchmark itself plays the remote
+// device on that link.
+class LoopbackSession {
+    static final long TIMEOUT_NANOS = 10 * 1000000000L;
+
+    // One of them is null
+    final BluetoothService service;
+    final BluetoothSPP bluetooth;
+    final Transport.Link peer;
+
+    LoopbackSession(BluetoothService.Callback callback, int pipeSize) throws IOException {
+        LoopbackTransport device = new LoopbackTransport("device", pipeSize);
+        service = new BluetoothService(device, callback);
+        bluetooth = null;
+        service.start(BluetoothState.DEVICE_OTHER);
+        peer = connect(device);
+    }
+
+    LoopbackSession(BluetoothSPP bluetooth, int pipeSize) throws IOException {
+        LoopbackTransport device = new LoopbackTransport("device", pipeSize);
+        service = null;
+        this.bluetooth = bluetooth;
+        bluetooth.setupService(device);
+        bluetooth.startService(BluetoothState.DEVICE_OTHER);
+        peer = connect(device);
+    }
+
+    private Transport.Link connect(LoopbackTransport device) throws IOException {
+        Transport.Link link = device.attach("peer").open("device", BluetoothState.UUID_OTHER_DEVICE);
+        link.connect();
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (getState() != BluetoothState.STATE_CONNECTED) {
+            if (System.nanoTime() > deadline)
+                throw new IOException("Service did not accept the loopback link");
+            Thread.yield();
+        }
+        return link;
+    }
+
+    private int getState() {
+        return service != null ? service.getState() : bluetooth.getServiceState();
+    }
+
+    void close() throws IOException {
+        if (service != null)
+            service.stop();
+        else
+            bluetooth.stopService();
+        peer.close();
+    }
+
+    // Spin until counter() reaches target, the benchmarks measure the wait
+    static void await(Counter counter, long target) {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (counter.get() < target) {
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("Stuck at " + counter.get() + " of " + target + " bytes");
+            Thread.yield();
+        }
+    }
+
+    interface Counter {
+        long get();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.benchmark;
+
+import de.wirecard.bluetoothspp.library.BluetoothSPP;
+import de.wirecard.bluetoothspp.library.JvmBluetoothSPP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Reader thread -> BluetoothSPP -> OnDataReceivedListener. One operation is
+// a chunk written by the remote device until the listener has seen all of
+// it. "main" passes the reads through the event pool and the listener list
+// to a single thread standing in for the main Looper, "direct" is
+// setDirectDispatch(true) and calls the listeners on the reader thread.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReceiveBenchmark {
+    @Param({"16", "256", "2048"})
+    public int chunkSize;
+
+    @Param({"direct", "main"})
+    public String dispatch;
+
+    // Write rate of the remote device in bytes per second, 0 for back to
+    // back. Paced, the reader and main threads go idle between chunks and
+    // the score includes waking them up.
+    @Param({"0", "100000"})
+    public int rate;
+
+    private ExecutorService mMainThread;
+    private LoopbackSession mSession;
+    private OutputStream mDevice;
+    private byte[] mChunk;
+    private long mSent = 0;
+    private long mNextWriteAt = 0;
+    private volatile long mReceived = 0;
+
+    private final LoopbackSession.Counter mCounter = new LoopbackSession.Counter() {
+        public long get() {
+            return mReceived;
+        }
+    };
+
+    private final BluetoothSPP.OnDataReceivedListener mListener = new BluetoothSPP.OnDataReceivedListener() {
+        public void onDataReceived(byte[] data, int length) {
+            // Only ever called by one thread
+            mReceived += length;
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mChunk = new byte[chunkSize];
+        mMainThread = Executors.newSingleThreadExecutor();
+        BluetoothSPP bluetooth = JvmBluetoothSPP.create(mMainThread);
+        bluetooth.setDirectDispatch("direct".equals(dispatch));
+        bluetooth.addOnDataReceivedListener(mListener);
+        mSession = new LoopbackSession(bluetooth, 64 * 1024);
+        mDevice = mSession.peer.getOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mSession.close();
+        mMainThread.shutdownNow();
+    }
+
+    // Waiting for the next write slot is not part of the measured time
+    @Setup(Level.Invocation)
+    public void pace() {
+        if (rate <= 0)
+            return;
+        long now;
+        while ((now = System.nanoTime()) < mNextWriteAt)
+            LockSupport.parkNanos(mNextWriteAt - now);
+        mNextWriteAt = Math.max(now, mNextWriteAt) + chunkSize * 1000000000L / rate;
+    }
+
+    @Benchmark
+    public long receive() throws IOException {
+        mDevice.write(mChunk);
+        mSent += chunkSize;
+        LoopbackSession.await(mCounter, mSent);
+        return mReceived;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.benchmark;
+
+import de.wirecard.bluetoothspp.library.BluetoothService;
+import de.wirecard.bluetoothspp.library.BluetoothState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+// send() -> priority lanes -> writer thread -> socket. The remote device
+// drains the link on its own thread. enqueue measures what the caller of
+// send() pays once the lanes are full, roundTrip the time until the bytes
+// have left the writer thread and were read by the device.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendBenchmark {
+    @Param({"16", "256", "4096"})
+    public int chunkSize;
+
+    // Pacing of the writer thread in bytes per second, 0 for none
+    @Param({"0", "1000000"})
+    public int rate;
+
+    private LoopbackSession mSession;
+    private byte[] mChunk;
+    private long mSent = 0;
+    private volatile long mDrained = 0;
+    private Thread mDrainer;
+
+    private final LoopbackSession.Counter mCounter = new LoopbackSession.Counter() {
+        public long get() {
+            return mDrained;
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mChunk = new byte[chunkSize];
+        mSession = new LoopbackSession(new BluetoothService.Callback() {
+            public void onStateChanged(int state) {
+            }
+
+            public void onDeviceConnected(String name, String address) {
+            }
+
+            public void onDataRead(byte[] data, int length, long timestampNanos) {
+            }
+        }, 64 * 1024);
+        if (rate > 0)
+            mSession.service.getPacer().configure(rate, 1024, 0);
+
+        final InputStream device = mSession.peer.getInputStream();
+        mDrainer = new Thread("Benchmark drainer") {
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    int n;
+                    while ((n = device.read(buffer)) >= 0)
+                        mDrained += n;
+                } catch (IOException e) {
+                    // Link closed
+                }
+            }
+        };
+        mDrainer.start();
+    }
+
+    // Let the lanes run empty so that iterations don't inherit a backlog
+    @TearDown(Level.Iteration)
+    public void drain() {
+        LoopbackSession.await(mCounter, mSent);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mSession.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public boolean enqueue() {
+        // A full lane blocks until the writer has made room, false only if
+        // the link is gone
+        boolean queued = mSession.service.write(mChunk, 0, chunkSize, BluetoothState.PRIORITY_NORMAL);
+        if (queued)
+            mSent += chunkSize;
+        return queued;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public long roundTrip() {
+        if (mSession.service.write(mChunk, 0, chunkSize, BluetoothState.PRIORITY_NORMAL))
+            mSent += chunkSize;
+        LoopbackSession.await(mCounter, mSent);
+        return mDrained;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.benchmark;
+
+import de.wirecard.bluetoothspp.library.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Wraps another transport and makes its links behave like a bad radio:
+// latency, a bandwidth cap, fragmented reads, stalls and abrupt
+// disconnects. Every direction of a link runs through a delay line with
+// its own pump thread, so latency delays the data but not the caller.
+// All faults can be changed while links are open, a seed makes runs
+// repeatable as far as thread timing allows.
+public class FaultyTransport implements Transport {
+    // Bytes a delay line holds before writers block, like a socket buffer
+    private static final int LINE_CAPACITY = 64 * 1024;
+    private static final long TIMER_SLACK_NANOS = 1000000L;
+
+    private final Transport mTransport;
+    private final Random mRandom;
+    private final List<FaultyLink> mLinks = new ArrayList<FaultyLink>();
+
+    private volatile long mLatencyNanos = 0;
+    private volatile long mJitterNanos = 0;
+    private volatile int mBytesPerSecond = 0;
+    private volatile int mMaxReadSize = 0;
+    private volatile double mStallProbability = 0;
+    private volatile long mStallNanos = 0;
+    private volatile double mDisconnectProbability = 0;
+    private volatile double mConnectFailureProbability = 0;
+
+    private final AtomicLong mStalls = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+
+    public FaultyTransport(Transport transport, long seed) {
+        mTransport = transport;
+        mRandom = new Random(seed);
+    }
+
+    // Delay of every chunk in both directions, plus up to jitterMillis more
+    public void setLatency(long millis, long jitterMillis) {
+        mLatencyNanos = millis * 1000000L;
+        mJitterNanos = jitterMillis * 1000000L;
+    }
+
+    // Cap of each direction, 0 for none
+    public void setBandwidth(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    // Reads return between 1 and maxReadSize bytes, 0 to return what is there
+    public void setFragmentation(int maxReadSize) {
+        mMaxReadSize = maxReadSize;
+    }
+
+    // Chance for every read and write to hang for millis first
+    public void setStalls(double probability, long millis) {
+        mStallProbability = probability;
+        mStallNanos = millis * 1000000L;
+    }
+
+    // Chance for every read and write to drop the link instead
+    public void setDisconnects(double probability) {
+        mDisconnectProbability = probability;
+    }
+
+    // Chance for connect() to fail
+    public void setConnectFailures(double probability) {
+        mConnectFailureProbability = probability;
+    }
+
+    // Drop all open links now, as if the peer went out of range
+    public void disconnectAll() {
+        List<FaultyLink> links;
+        synchronized (mLinks) {
+            links = new ArrayList<FaultyLink>(mLinks);
+        }
+        for (FaultyLink link : links)
+            link.drop();
+    }
+
+    public int getOpenLinks() {
+        synchronized (mLinks) {
+            return mLinks.size();
+        }
+    }
+
+    public long getInjectedStalls() {
+        return mStalls.get();
+    }
+
+    public long getInjectedDisconnects() {
+        return mDisconnects.get();
+    }
+
+    public long getInjectedConnectFailures() {
+        return mConnectFailures.get();
+    }
+
+    public Acceptor listen(String name, UUID service) throws IOException {
+        final Acceptor acceptor = mTransport.listen(name, service);
+        return new Acceptor() {
+            public Link accept() throws IOException {
+                return new FaultyLink(acceptor.accept(), true);
+            }
+
+            public void close() throws IOException {
+                acceptor.close();
+            }
+        };
+    }
+
+    public Link open(String address, UUID service) throws IOException {
+        return new FaultyLink(mTransport.open(address, service), false);
+    }
+
+    private boolean chance(double probability) {
+        return probability > 0 && mRandom.nextDouble() < probability;
+    }
+
+    private class FaultyLink implements Link {
+        private final Link mmLink;
+        private DelayLine mmIn;
+        private DelayLine mmOut;
+        private InputStream mmInput;
+        private OutputStream mmOutput;
+        private boolean isClosed = false;
+
+        FaultyLink(Link link, boolean isConnected) throws IOException {
+            mmLink = link;
+            if (isConnected)
+                open();
+        }
+
+        public void connect() throws IOException {
+            if (chance(mConnectFailureProbability)) {
+                mConnectFailures.incrementAndGet();
+                throw new IOException("Injected connect failure");
+            }
+            mmLink.connect();
+            open();
+        }
+
+        private synchronized void open() throws IOException {
+            if (isClosed)
+                throw new IOException("Link closed");
+            final InputStream in = mmLink.getInputStream();
+            final OutputStream out = mmLink.getOutputStream();
+            mmIn = new DelayLine();
+            mmOut = new DelayLine();
+            synchronized (mLinks) {
+                mLinks.add(this);
+            }
+
+            new Thread("Faulty link reader") {
+                public void run() {
+                    byte[] buffer = new byte[2048];
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) >= 0)
+                            mmIn.put(buffer, 0, n);
+                        mmIn.finish(null);
+                    } catch (IOException e) {
+                        mmIn.finish(e);
+                    }
+                }
+            }.start();
+
+            new Thread("Faulty link writer") {
+                public void run() {
+                    byte[] buffer = new byte[2048];
+                    try {
+                        int n;
+                        while ((n = mmOut.take(buffer, 0, buffer.length, false)) >= 0) {
+                            out.write(buffer, 0, n);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        mmOut.finish(e);
+                    }
+                }
+            }.start();
+
+            mmInput = new InputStream() {
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    inject();
+                    return mmIn.take(buffer, offset, length, true);
+                }
+
+                public void close() {
+                    drop();
+                }
+            };
+
+            mmOutput = new OutputStream() {
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    inject();
+                    mmOut.put(buffer, offset, length);
+                }
+
+                public void close() {
+                    drop();
+                }
+            };
+        }
+
+        private void inject() throws IOException {
+            if (chance(mStallProbability)) {
+                mStalls.incrementAndGet();
+                sleep(mStallNanos);
+            }
+            if (chance(mDisconnectProbability)) {
+                mDisconnects.incrementAndGet();
+                drop();
+                throw new IOException("Injected disconnect");
+            }
+        }
+
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mmInput == null)
+                throw new IOException("Not connected");
+            return mmInput;
+        }
+
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mmOutput == null)
+                throw new IOException("Not connected");
+            return mmOutput;
+        }
+
+        public String getName() {
+            return mmLink.getName();
+        }
+
+        public String getAddress() {
+            return mmLink.getAddress();
+        }
+
+        public void close() throws IOException {
+            drop();
+        }
+
+        // Close without flushing the delay lines, pending data is lost
+        void drop() {
+            DelayLine in, out;
+            synchronized (this) {
+                isClosed = true;
+                in = mmIn;
+                out = mmOut;
+            }
+            synchronized (mLinks) {
+                mLinks.remove(this);
+            }
+            IOException closed = new IOException("Link closed");
+            if (in != null)
+                in.finish(closed);
+            if (out != null)
+                out.finish(closed);
+            try {
+                mmLink.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    // Chunks in transit in one direction, released once their latency has
+    // passed and no faster than the bandwidth cap
+    private class DelayLine {
+        private final LinkedList<Segment> mmSegments = new LinkedList<Segment>();
+        private int mmQueued = 0;
+        private long mmLastDue = 0;
+        private long mmNextFree = 0;
+        private boolean isFinished = false;
+        private IOException mmError = null;
+
+        synchronized void put(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mmQueued >= LINE_CAPACITY && !isFinished)
+                    await(0);
+                if (isFinished)
+                    throw mmError != null ? mmError : new IOException("Link closed");
+                int n = Math.min(length, LINE_CAPACITY - mmQueued);
+                long due = System.nanoTime() + mLatencyNanos;
+                if (mJitterNanos > 0)
+                    due += (long) (mRandom.nextDouble() * mJitterNanos);
+                // Jitter must not reorder the data
+                due = Math.max(due, mmLastDue);
+                mmLastDue = due;
+                byte[] data = new byte[n];
+                System.arraycopy(buffer, offset, data, 0, n);
+                mmSegments.add(new Segment(data, due));
+                mmQueued += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        // fragment : Apply the read fragmentation
+        // return   : -1 once finished without error and drained
+        synchronized int take(byte[] buffer, int offset, int length, boolean fragment) throws IOException {
+            while (true) {
+                if (isFinished && mmError != null)
+                    throw mmError;
+                if (mmSegments.isEmpty()) {
+                    if (isFinished)
+                        return -1;
+                    await(0);
+                    continue;
+                }
+                long now = System.nanoTime();
+                long due = Math.max(mmSegments.getFirst().mDue, mmNextFree);
+                // Waits are only as exact as wait(), up to a millisecond
+                // early keeps small reads from sleeping a millisecond each
+                if (due > now + TIMER_SLACK_NANOS) {
+                    await(due - now);
+                    continue;
+                }
+                break;
+            }
+
+            Segment segment = mmSegments.getFirst();
+            int n = Math.min(length, segment.mData.length - segment.mPosition);
+            int maxRead = mMaxReadSize;
+            if (fragment && maxRead > 0)
+                n = Math.min(n, 1 + mRandom.nextInt(maxRead));
+            System.arraycopy(segment.mData, segment.mPosition, buffer, offset, n);
+            segment.mPosition += n;
+            if (segment.mPosition == segment.mData.length)
+                mmSegments.removeFirst();
+            mmQueued -= n;
+
+            int rate = mBytesPerSecond;
+            if (rate > 0)
+                mmNextFree = Math.max(mmNextFree, System.nanoTime()) + n * 1000000000L / rate;
+            notifyAll();
+            return n;
+        }
+
+        // error : null for a normal end, the data still queued is delivered
+        synchronized void finish(IOException error) {
+            if (isFinished && (mmError != null || error == null))
+                return;
+            isFinished = true;
+            mmError = error;
+            notifyAll();
+        }
+
+        private void await(long nanos) throws IOException {
+            try {
+                if (nanos > 0)
+                    wait(nanos / 1000000L, (int) (nanos % 1000000L));
+                else
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static class Segment {
+        final byte[] mData;
+        final long mDue;
+        int mPosition = 0;
+
+        Segment(byte[] data, long due) {
+            mData = data;
+            mDue = due;
+        }
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        try {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
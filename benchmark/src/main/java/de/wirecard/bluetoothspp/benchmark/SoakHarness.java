@@ -0,0 +1,357 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.benchmark;
+
+import de.wirecard.bluetoothspp.library.BluetoothService;
+import de.wirecard.bluetoothspp.library.BluetoothState;
+import de.wirecard.bluetoothspp.library.LoopbackTransport;
+import de.wirecard.bluetoothspp.library.Tracer;
+import de.wirecard.bluetoothspp.library.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Runs one BluetoothService through thousands of connect, transfer and
+// disconnect cycles over a FaultyTransport against an echoing peer, and
+// reports stuck states, leaked threads and throughput degradation.
+// Connects alternate between both sides, so do the disconnects.
+//
+//   ./gradlew -Pbenchmarks :benchmark:soak -Pargs="cycles=5000 latency=2 fragment=64 disconnect=0.001"
+//
+// Options, all key=value:
+//   cycles, bytes        cycles to run and bytes echoed per cycle
+//   latency, jitter      milliseconds
+//   bandwidth            bytes per second, 0 for none
+//   fragment             maximum read size, 0 for none
+//   stall, stallMillis   chance per read and write, length of a stall
+//   disconnect           chance per read and write
+//   connectFailure       chance per outgoing connect
+//   timeout              milliseconds a step may take before it counts as stuck
+//   seed
+public class SoakHarness {
+    private final Map<String, String> mOptions;
+    private final long mTimeoutNanos;
+
+    private FaultyTransport mTransport;
+    private BluetoothService mService;
+    private volatile long mReceived = 0;
+    private volatile int mLastState = BluetoothState.STATE_NONE;
+    private volatile boolean isConnectFailed = false;
+    private volatile boolean isConnected = false;
+
+    private int mCompleted = 0;
+    private int mInterrupted = 0;
+    private int mConnectFailures = 0;
+    private final List<String> mStuck = new ArrayList<String>();
+    private final List<Double> mThroughputs = new ArrayList<Double>();
+
+    SoakHarness(Map<String, String> options) {
+        mOptions = options;
+        mTimeoutNanos = getLong("timeout", 10000) * 1000000L;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Options are key=value, got " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        System.exit(new SoakHarness(options).run() ? 0 : 1);
+    }
+
+    boolean run() throws Exception {
+        int cycles = (int) getLong("cycles", 1000);
+        int bytes = (int) getLong("bytes", 16 * 1024);
+        Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+
+        LoopbackTransport device = new LoopbackTransport("device");
+        LoopbackTransport peer = device.attach("peer");
+        mTransport = new FaultyTransport(device, getLong("seed", 1));
+        mTransport.setLatency(getLong("latency", 0), getLong("jitter", 0));
+        mTransport.setBandwidth((int) getLong("bandwidth", 0));
+        mTransport.setFragmentation((int) getLong("fragment", 0));
+        mTransport.setStalls(getDouble("stall", 0), getLong("stallMillis", 100));
+        mTransport.setDisconnects(getDouble("disconnect", 0));
+        mTransport.setConnectFailures(getDouble("connectFailure", 0));
+
+        mService = new BluetoothService(mTransport, new BluetoothService.Callback() {
+            public void onStateChanged(int state) {
+                // A failed connect goes back to listening
+                if (mLastState == BluetoothState.STATE_CONNECTING && state == BluetoothState.STATE_LISTEN)
+                    isConnectFailed = true;
+                // Injected faults may drop a connection before it is polled
+                if (state == BluetoothState.STATE_CONNECTED)
+                    isConnected = true;
+                mLastState = state;
+            }
+
+            public void onDeviceConnected(String name, String address) {
+            }
+
+            public void onDataRead(byte[] data, int length, long timestampNanos) {
+                mReceived += length;
+            }
+        });
+        mService.start(BluetoothState.DEVICE_OTHER);
+
+        // The peer accepts the service's connects and echoes every link
+        final Transport.Acceptor acceptor = peer.listen("peer", BluetoothState.UUID_OTHER_DEVICE);
+        Thread peerAcceptor = new Thread("Soak peer acceptor") {
+            public void run() {
+                try {
+                    while (true)
+                        echo(acceptor.accept());
+                } catch (IOException e) {
+                    // Closed at the end of the run
+                }
+            }
+        };
+        peerAcceptor.start();
+
+        byte[] chunk = new byte[1024];
+        long startedAt = System.nanoTime();
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            runCycle(cycle, peer, chunk, bytes);
+            if ((cycle + 1) % 100 == 0)
+                System.out.println((cycle + 1) + " cycles, " + mStuck.size() + " stuck");
+        }
+        long elapsed = System.nanoTime() - startedAt;
+
+        mService.stop();
+        acceptor.close();
+        peerAcceptor.join(1000);
+        List<String> leaked = waitForThreads(threadsBefore);
+        double degradation = getDegradation();
+
+        System.out.println();
+        System.out.println("Cycles            " + cycles + " in " + elapsed / 1000000000L + "s");
+        System.out.println("Completed         " + mCompleted);
+        System.out.println("Interrupted       " + mInterrupted + " (connection lost during transfer)");
+        System.out.println("Connect failures  " + mConnectFailures);
+        System.out.println("Injected          " + mTransport.getInjectedDisconnects() + " disconnects, "
+                + mTransport.getInjectedStalls() + " stalls, "
+                + mTransport.getInjectedConnectFailures() + " connect failures");
+        System.out.println("Stuck             " + mStuck.size());
+        for (String stuck : mStuck)
+            System.out.println("  " + stuck);
+        System.out.println("Leaked threads    " + leaked.size());
+        for (String thread : leaked)
+            System.out.println("  " + thread);
+        System.out.println(String.format("Throughput        %.0f bytes/s first tenth, %.1f%% lower in the last tenth",
+                average(0, mThroughputs.size() / 10), degradation));
+        System.out.println();
+        System.out.println(mService.getMetrics().snapshot());
+        if (!mStuck.isEmpty())
+            System.out.println(mService.getTracer().dump());
+
+        return mStuck.isEmpty() && leaked.isEmpty() && degradation <= getDouble("maxDegradation", 20);
+    }
+
+    private void runCycle(int cycle, LoopbackTransport peer, byte[] chunk, int bytes) throws InterruptedException {
+        Transport.Link link = null;
+        isConnectFailed = false;
+        isConnected = false;
+        if (cycle % 2 == 0) {
+            // The peer connects to the listening service
+            link = connectToService(peer);
+            if (link == null) {
+                stuck(cycle, "peer could not connect");
+                return;
+            }
+            echo(link);
+        } else {
+            mService.connect("peer");
+        }
+
+        if (!waitForConnected()) {
+            if (isConnectFailed) {
+                mConnectFailures++;
+                waitForListen(cycle);
+            } else {
+                stuck(cycle, "not connected");
+            }
+            return;
+        }
+
+        // Transfer, the peer echoes everything back
+        mReceived = 0;
+        long transferStarted = System.nanoTime();
+        long sent = 0;
+        while (sent < bytes && mService.getState() == BluetoothState.STATE_CONNECTED) {
+            int n = (int) Math.min(chunk.length, bytes - sent);
+            if (!mService.write(chunk, 0, n, BluetoothState.PRIORITY_NORMAL))
+                break;
+            sent += n;
+        }
+        long lastProgress = System.nanoTime();
+        long seen = 0;
+        while (mReceived < bytes && mService.getState() == BluetoothState.STATE_CONNECTED) {
+            if (mReceived != seen) {
+                seen = mReceived;
+                lastProgress = System.nanoTime();
+            } else if (System.nanoTime() - lastProgress > mTimeoutNanos) {
+                stuck(cycle, "transfer stopped at " + mReceived + " of " + bytes + " bytes");
+                mService.stop();
+                mService.start(BluetoothState.DEVICE_OTHER);
+                return;
+            }
+            Thread.sleep(1);
+        }
+        if (mReceived >= bytes) {
+            mCompleted++;
+            mThroughputs.add(bytes * 1e9 / (System.nanoTime() - transferStarted));
+        } else {
+            mInterrupted++;
+        }
+
+        // Disconnect, from the peer on every other cycle
+        if (link != null && cycle % 4 == 0) {
+            try {
+                link.close();
+            } catch (IOException e) {
+                // Already dropped
+            }
+        } else {
+            mService.stop();
+            mService.start(BluetoothState.DEVICE_OTHER);
+        }
+        waitForListen(cycle);
+    }
+
+    private Transport.Link connectToService(LoopbackTransport peer) throws InterruptedException {
+        long deadline = System.nanoTime() + mTimeoutNanos;
+        while (System.nanoTime() < deadline) {
+            try {
+                Transport.Link link = peer.open("device", BluetoothState.UUID_OTHER_DEVICE);
+                link.connect();
+                return link;
+            } catch (IOException e) {
+                // The service may still be restarting its listener
+                Thread.sleep(1);
+            }
+        }
+        return null;
+    }
+
+    private boolean waitForConnected() throws InterruptedException {
+        long deadline = System.nanoTime() + mTimeoutNanos;
+        while (!isConnected) {
+            if (System.nanoTime() > deadline || isConnectFailed)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void waitForListen(int cycle) throws InterruptedException {
+        if (!waitForState(BluetoothState.STATE_LISTEN))
+            stuck(cycle, "did not return to listening");
+    }
+
+    private boolean waitForState(int state) throws InterruptedException {
+        long deadline = System.nanoTime() + mTimeoutNanos;
+        while (mService.getState() != state) {
+            if (System.nanoTime() > deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void stuck(int cycle, String what) {
+        mStuck.add("cycle " + cycle + ": " + what + " in " + Tracer.getStateName(mService.getState()));
+    }
+
+    // Echo everything the service sends on a thread of its own
+    private static void echo(final Transport.Link link) {
+        new Thread("Soak peer echo") {
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    InputStream in = link.getInputStream();
+                    OutputStream out = link.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) >= 0)
+                        out.write(buffer, 0, n);
+                } catch (IOException e) {
+                    // Link dropped
+                }
+                try {
+                    link.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }.start();
+    }
+
+    // Threads started during the run which are still alive after a grace period
+    private static List<String> waitForThreads(Set<Thread> before) throws InterruptedException {
+        List<String> leaked = new ArrayList<String>();
+        long deadline = System.nanoTime() + 2000000000L;
+        while (true) {
+            leaked.clear();
+            Set<Thread> now = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+            now.removeAll(before);
+            for (Thread thread : now) {
+                if (thread.isAlive() && thread != Thread.currentThread())
+                    leaked.add(thread.getName() + " (" + thread.getState() + ")");
+            }
+            if (leaked.isEmpty() || System.nanoTime() > deadline)
+                return leaked;
+            Thread.sleep(50);
+        }
+    }
+
+    // Percent the last tenth of the cycles is slower than the first
+    private double getDegradation() {
+        int tenth = mThroughputs.size() / 10;
+        if (tenth == 0)
+            return 0;
+        double first = average(0, tenth);
+        double last = average(mThroughputs.size() - tenth, mThroughputs.size());
+        return (first - last) * 100 / first;
+    }
+
+    private double average(int from, int to) {
+        if (to <= from)
+            return 0;
+        double sum = 0;
+        for (int i = from; i < to; i++)
+            sum += mThroughputs.get(i);
+        return sum / (to - from);
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = mOptions.get(key);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        String value = mOptions.get(key);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.benchmark;
+
+import de.wirecard.bluetoothspp.library.BluetoothState;
+import de.wirecard.bluetoothspp.library.FrameAssembler;
+import de.wirecard.bluetoothspp.library.TcpTransport;
+import de.wirecard.bluetoothspp.library.Transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Scriptable stand-in for an SPP device, e.g. for load tests on machines
+// without Bluetooth. Incoming data is split into commands at a delimiter,
+// the first rule whose pattern matches a command answers it. A generator
+// can stream on its own at a fixed rate. The peer listens on or connects
+// through any Transport, a LoopbackTransport endpoint in JVM tests or a
+// TcpTransport for an app in the emulator:
+//   ./gradlew -Pbenchmarks :benchmark:virtualPeer -Pargs="7000 sensor 2000"
+public class VirtualPeer {
+    private static final int MAX_COMMAND_SIZE = 4096;
+
+    private final Transport mTransport;
+    private final List<Rule> mRules = new ArrayList<Rule>();
+    private byte mDelimiter = '\n';
+
+    private volatile Generator mGenerator = null;
+    private volatile int mStreamRate = 0;
+    private volatile boolean isStreaming = false;
+
+    private Transport.Acceptor mAcceptor;
+    private Transport.Link mLink;
+    private OutputStream mOut;
+    private boolean isClosed = false;
+
+    private volatile long mCommands = 0;
+    private volatile long mUnmatched = 0;
+    private volatile long mBytesSent = 0;
+    private volatile int mConnections = 0;
+
+    // Answers a command, null for no answer
+    public interface Response {
+        public byte[] respond(Matcher command);
+    }
+
+    // Produces the payloads of a stream, sequence counts from 0 per stream
+    public interface Generator {
+        public byte[] next(long sequence);
+    }
+
+    private static class Rule {
+        final Pattern mPattern;
+        final Response mResponse;
+        final long mDelayMillis;
+
+        Rule(Pattern pattern, Response response, long delayMillis) {
+            mPattern = pattern;
+            mResponse = response;
+            mDelayMillis = delayMillis;
+        }
+    }
+
+    public VirtualPeer(Transport transport) {
+        mTransport = transport;
+    }
+
+    // Byte ending every command, '\n' unless set
+    public synchronized VirtualPeer setDelimiter(byte delimiter) {
+        mDelimiter = delimiter;
+        return this;
+    }
+
+    // Answer commands matching a regular expression. Commands are decoded
+    // as ISO-8859-1 without the delimiter, so every byte maps to one char.
+    // delayMillis : Processing time of the device, holds up later commands too
+    public synchronized VirtualPeer respond(String pattern, long delayMillis, Response response) {
+        mRules.add(new Rule(Pattern.compile(pattern, Pattern.DOTALL), response, delayMillis));
+        return this;
+    }
+
+    public VirtualPeer respond(String pattern, Response response) {
+        return respond(pattern, 0, response);
+    }
+
+    // Answer with a fixed payload
+    public VirtualPeer respond(String pattern, final byte[] reply) {
+        return respond(pattern, 0, new Response() {
+            public byte[] respond(Matcher command) {
+                return reply;
+            }
+        });
+    }
+
+    // Answer with text, "$1" and alike are replaced by the groups of the pattern
+    public VirtualPeer respond(String pattern, final String reply) {
+        return respond(pattern, 0, new Response() {
+            public byte[] respond(Matcher command) {
+                StringBuffer text = new StringBuffer();
+                command.appendReplacement(text, reply);
+                return bytes(text.toString());
+            }
+        });
+    }
+
+    // Stream the payloads of a generator while connected and startStream()ed
+    // bytesPerSecond : 0 streams as fast as the link takes it
+    public VirtualPeer setStream(Generator generator, int bytesPerSecond) {
+        mGenerator = generator;
+        mStreamRate = bytesPerSecond;
+        return this;
+    }
+
+    public void startStream() {
+        isStreaming = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public void stopStream() {
+        isStreaming = false;
+    }
+
+    // Wait for connections until close(), one at a time
+    public void listen(UUID service) throws IOException {
+        final Transport.Acceptor acceptor = mTransport.listen("VirtualPeer", service);
+        synchronized (this) {
+            mAcceptor = acceptor;
+        }
+        new Thread("VirtualPeer acceptor") {
+            public void run() {
+                try {
+                    while (true)
+                        serve(acceptor.accept());
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }.start();
+    }
+
+    // Connect to a listening device and serve that one connection
+    public void connect(String address, UUID service) throws IOException {
+        final Transport.Link link = mTransport.open(address, service);
+        link.connect();
+        new Thread("VirtualPeer connection") {
+            public void run() {
+                serve(link);
+            }
+        }.start();
+    }
+
+    // Send unsolicited data, e.g. an event from the test
+    public void send(byte[] data) throws IOException {
+        OutputStream out;
+        synchronized (this) {
+            out = mOut;
+        }
+        if (out == null)
+            throw new IOException("Not connected");
+        write(out, data);
+    }
+
+    // Drop the current connection, the peer keeps listening
+    public void disconnect() {
+        Transport.Link link;
+        synchronized (this) {
+            link = mLink;
+        }
+        if (link != null)
+            closeQuietly(link);
+    }
+
+    public void close() {
+        Transport.Acceptor acceptor;
+        synchronized (this) {
+            isClosed = true;
+            acceptor = mAcceptor;
+            notifyAll();
+        }
+        if (acceptor != null)
+            closeQuietly(acceptor);
+        disconnect();
+    }
+
+    // Block until at least count connections were made
+    public synchronized boolean awaitConnections(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mConnections < count && !isClosed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            wait(left);
+        }
+        return mConnections >= count;
+    }
+
+    public synchronized boolean isConnected() {
+        return mLink != null;
+    }
+
+    public long getCommandsReceived() {
+        return mCommands;
+    }
+
+    public long getUnmatchedCommands() {
+        return mUnmatched;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    private void serve(Transport.Link link) {
+        InputStream in;
+        final OutputStream out;
+        try {
+            in = link.getInputStream();
+            out = link.getOutputStream();
+        } catch (IOException e) {
+            closeQuietly(link);
+            return;
+        }
+        byte delimiter;
+        synchronized (this) {
+            if (isClosed) {
+                closeQuietly(link);
+                return;
+            }
+            mLink = link;
+            mOut = out;
+            mConnections++;
+            delimiter = mDelimiter;
+            notifyAll();
+        }
+        startStreamer(link, out);
+
+        FrameAssembler commands = new FrameAssembler(FrameAssembler.delimited(delimiter), MAX_COMMAND_SIZE,
+                new FrameAssembler.OnFrameReceivedListener() {
+                    public void onFrameReceived(byte[] buffer, int offset, int length) {
+                        // Without the delimiter
+                        onCommand(out, text(buffer, offset, length - 1));
+                    }
+                });
+        byte[] buffer = new byte[1024];
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0)
+                commands.feed(buffer, 0, n);
+        } catch (IOException e) {
+            // Connection dropped
+        }
+        synchronized (this) {
+            if (mLink == link) {
+                mLink = null;
+                mOut = null;
+            }
+            notifyAll();
+        }
+        closeQuietly(link);
+    }
+
+    private void onCommand(OutputStream out, String command) {
+        mCommands++;
+        Rule rule = null;
+        Matcher matcher = null;
+        synchronized (this) {
+            for (Rule candidate : mRules) {
+                matcher = candidate.mPattern.matcher(command);
+                if (matcher.matches()) {
+                    rule = candidate;
+                    break;
+                }
+            }
+        }
+        if (rule == null) {
+            mUnmatched++;
+            return;
+        }
+        try {
+            if (rule.mDelayMillis > 0)
+                Thread.sleep(rule.mDelayMillis);
+            byte[] reply = rule.mResponse.respond(matcher);
+            if (reply != null)
+                write(out, reply);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The reader sees the connection drop as well
+        }
+    }
+
+    private void startStreamer(final Transport.Link link, final OutputStream out) {
+        Thread streamer = new Thread("VirtualPeer streamer") {
+            public void run() {
+                long sequence = 0;
+                long sent = 0;
+                long startedAt = 0;
+                try {
+                    while (true) {
+                        synchronized (VirtualPeer.this) {
+                            while (!isStreaming || mGenerator == null) {
+                                if (mLink != link)
+                                    return;
+                                VirtualPeer.this.wait(100);
+                                startedAt = 0;
+                            }
+                            if (mLink != link)
+                                return;
+                        }
+                        if (startedAt == 0) {
+                            startedAt = System.nanoTime();
+                            sent = 0;
+                        }
+                        byte[] payload = mGenerator.next(sequence++);
+                        int rate = mStreamRate;
+                        if (rate > 0) {
+                            // Keep the average rate since the stream started
+                            long due = startedAt + sent * 1000000000L / rate;
+                            long wait = due - System.nanoTime();
+                            if (wait > 0)
+                                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        }
+                        write(out, payload);
+                        sent += payload.length;
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                } catch (IOException e) {
+                    // Connection dropped
+                }
+            }
+        };
+        streamer.start();
+    }
+
+    private void write(OutputStream out, byte[] data) throws IOException {
+        // Replies and the stream must not interleave within a payload
+        synchronized (out) {
+            out.write(data);
+            out.flush();
+        }
+        mBytesSent += data.length;
+    }
+
+    // Profiles
+
+    // Answers every command with itself
+    public static VirtualPeer echo(Transport transport) {
+        return new VirtualPeer(transport).respond("(.*)", "$1\n");
+    }
+
+    // A receipt printer: STATUS, PRINT <text> which takes time per
+    // character, FEED <lines> and CUT. Anything else is answered with ERR.
+    public static VirtualPeer printer(Transport transport, final long millisPerChar) {
+        final VirtualPeer peer = new VirtualPeer(transport);
+        peer.respond("STATUS", "OK READY PAPER=OK\n");
+        peer.respond("PRINT (.*)", new Response() {
+            public byte[] respond(Matcher command) {
+                sleep(command.group(1).length() * millisPerChar);
+                return bytes("OK PRINTED " + command.group(1).length() + "\n");
+            }
+        });
+        peer.respond("FEED (\\d+)", "OK FED $1\n");
+        peer.respond("CUT", "OK CUT\n");
+        peer.respond(".*", "ERR UNKNOWN\n");
+        return peer;
+    }
+
+    // A sensor streaming "SEQ,temperature,humidity" lines, START and STOP
+    // control the stream, RATE <bytes per second> changes its speed
+    public static VirtualPeer sensor(Transport transport, int bytesPerSecond, long seed) {
+        final VirtualPeer peer = new VirtualPeer(transport);
+        final Random random = new Random(seed);
+        peer.setStream(new Generator() {
+            public byte[] next(long sequence) {
+                double temperature = 21 + random.nextGaussian() * 0.5;
+                double humidity = 40 + random.nextGaussian() * 2;
+                return bytes(String.format(Locale.US, "%d,%.2f,%.1f\n", sequence, temperature, humidity));
+            }
+        }, bytesPerSecond);
+        peer.respond("START", new Response() {
+            public byte[] respond(Matcher command) {
+                peer.startStream();
+                return bytes("OK\n");
+            }
+        });
+        peer.respond("STOP", new Response() {
+            public byte[] respond(Matcher command) {
+                peer.stopStream();
+                return bytes("OK\n");
+            }
+        });
+        peer.respond("RATE (\\d+)", new Response() {
+            public byte[] respond(Matcher command) {
+                peer.mStreamRate = Integer.parseInt(command.group(1));
+                return bytes("OK\n");
+            }
+        });
+        peer.respond(".*", "ERR UNKNOWN\n");
+        return peer;
+    }
+
+    static byte[] bytes(String text) {
+        try {
+            return text.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String text(byte[] buffer, int offset, int length) {
+        try {
+            return new String(buffer, offset, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // java VirtualPeer <port> echo|printer|sensor [bytes per second]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: VirtualPeer <port> echo|printer|sensor [<bytes per second>]");
+            System.exit(2);
+        }
+        Transport transport = new TcpTransport(Integer.parseInt(args[0]), 0);
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        VirtualPeer peer;
+        if ("echo".equals(args[1]))
+            peer = echo(transport);
+        else if ("printer".equals(args[1]))
+            peer = printer(transport, 2);
+        else if ("sensor".equals(args[1]))
+            peer = sensor(transport, rate, System.nanoTime());
+        else
+            throw new IllegalArgumentException("Unknown profile " + args[1]);
+        peer.listen(BluetoothState.UUID_OTHER_DEVICE);
+        System.out.println("Listening on port " + args[0] + " as " + args[1] + ", Ctrl-C to stop");
+        while (true) {
+            Thread.sleep(10000);
+            System.out.println(peer.getCommandsReceived() + " commands, " + peer.getBytesSent() + " bytes sent");
+        }
+    }
+}
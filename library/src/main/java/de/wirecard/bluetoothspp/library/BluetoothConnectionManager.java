@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import de.wirecard.bluetoothspp.library.BluetoothSPP.BluetoothConnectionListener;
+
+// One BluetoothSPP for the whole process, so that the connection survives
+// rotation and moving between Activities. Components attach while they are
+// visible, usually in onStart(), and detach in onStop(); they add their
+// listeners with the add*/remove* methods of BluetoothSPP meanwhile. Once
+// the last one has detached, the connection is kept for the idle timeout
+// and then stopped. Never call stopService() on the shared BluetoothSPP,
+// use shutdown().
+//
+// Call everything on the main thread.
+public class BluetoothConnectionManager {
+    // Keeps the connection while nobody is attached, e.g. across a rotation
+    public static final long DEFAULT_IDLE_TIMEOUT = 10 * 1000;
+    // Keep the connection until shutdown()
+    public static final long KEEP_FOREVER = -1;
+
+    private static BluetoothConnectionManager sInstance = null;
+
+    private final Context mContext;
+    private final BluetoothSPP mBluetooth;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Set<Object> mOwners = new HashSet<Object>();
+
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private boolean isKeepAliveEnabled = false;
+    private boolean isKeepAliveRunning = false;
+    private boolean isConnected = false;
+
+    public static synchronized BluetoothConnectionManager getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new BluetoothConnectionManager(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private BluetoothConnectionManager(Context context) {
+        mContext = context;
+        mBluetooth = new BluetoothSPP(context);
+        mBluetooth.addBluetoothConnectionListener(new BluetoothConnectionListener() {
+            public void onDeviceConnected(String name, String address) {
+                isConnected = true;
+                updateKeepAlive();
+            }
+
+            public void onDeviceDisconnected() {
+                isConnected = false;
+                updateKeepAlive();
+            }
+
+            public void onDeviceConnectionFailed() {
+            }
+        });
+    }
+
+    // Register a component using the connection, attaching twice is harmless
+    // owner : Usually the Activity or Fragment itself
+    public BluetoothSPP attach(Object owner) {
+        mHandler.removeCallbacks(mIdleShutdown);
+        mOwners.add(owner);
+        return mBluetooth;
+    }
+
+    // The component is done with the connection for now. Remove its
+    // listeners before or they keep the component alive.
+    public void detach(Object owner) {
+        if (mOwners.remove(owner) && mOwners.isEmpty() && mIdleTimeout >= 0)
+            mHandler.postDelayed(mIdleShutdown, mIdleTimeout);
+    }
+
+    public BluetoothSPP getBluetooth() {
+        return mBluetooth;
+    }
+
+    // Set up the service unless an earlier call did and start it unless it
+    // is listening or connected already. Bluetooth must be enabled.
+    // deviceTarget : BluetoothState.DEVICE_ANDROID or DEVICE_OTHER
+    public void start(boolean deviceTarget) {
+        if (!mBluetooth.isServiceAvailable())
+            mBluetooth.setupService();
+        // startService() leaves a listening or connected service alone and
+        // cancels the delayed second stop of an earlier shutdown()
+        mBluetooth.startService(deviceTarget);
+    }
+
+    // Disconnect and stop the service until the next start()
+    public void shutdown() {
+        mHandler.removeCallbacks(mIdleShutdown);
+        if (mBluetooth.isServiceAvailable())
+            mBluetooth.stopService();
+        isConnected = false;
+        updateKeepAlive();
+    }
+
+    // How long the connection stays up with nobody attached, KEEP_FOREVER
+    // to keep it until shutdown()
+    public void setIdleTimeout(long millis) {
+        mIdleTimeout = millis;
+    }
+
+    // Run BluetoothConnectionService while connected. Android then keeps
+    // the process around as a service process when the app goes to the
+    // background, instead of killing it with the connection early.
+    public void setKeepAliveEnabled(boolean enabled) {
+        isKeepAliveEnabled = enabled;
+        updateKeepAlive();
+    }
+
+    public int getAttachedCount() {
+        return mOwners.size();
+    }
+
+    private void updateKeepAlive() {
+        boolean wanted = isKeepAliveEnabled && isConnected;
+        if (wanted == isKeepAliveRunning)
+            return;
+        isKeepAliveRunning = wanted;
+        Intent intent = new Intent(mContext, BluetoothConnectionService.class);
+        if (wanted)
+            mContext.startService(intent);
+        else
+            mContext.stopService(intent);
+    }
+
+    private final Runnable mIdleShutdown = new Runnable() {
+        public void run() {
+            if (mOwners.isEmpty())
+                shutdown();
+        }
+    };
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+// Started by BluetoothConnectionManager while connected, see
+// setKeepAliveEnabled(). It holds no state of its own, a running service
+// only raises the priority of the process that owns the connection.
+public class BluetoothConnectionService extends Service {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // After the process was killed there is no connection to keep
+        return START_NOT_STICKY;
+    }
+
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
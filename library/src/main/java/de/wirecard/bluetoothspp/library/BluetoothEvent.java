@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+// One call of BluetoothService.Callback, carried to another thread. Events
+// come from a small pool like Android's Message, so the receive path
+// allocates nothing per event once the pool is warm. The receiver must
+// recycle() an event once it has handled it and not touch it afterwards.
+final class BluetoothEvent {
+    static final int TYPE_STATE_CHANGED = 1;
+    static final int TYPE_DEVICE_CONNECTED = 2;
+    static final int TYPE_DATA_READ = 3;
+
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object sPoolLock = new Object();
+    private static BluetoothEvent sPool = null;
+    private static int sPoolSize = 0;
+
+    private BluetoothEvent mNext = null;
+
+    int type;
+    // TYPE_STATE_CHANGED
+    int state;
+    // TYPE_DEVICE_CONNECTED
+    String name;
+    String address;
+    // TYPE_DATA_READ, the buffer is owned by the event
+    byte[] data;
+    int length;
+    // System.nanoTime() when the event was raised, for TYPE_DATA_READ when
+    // read() returned on the reader thread
+    long timestampNanos;
+
+    private BluetoothEvent() {
+    }
+
+    static BluetoothEvent obtain(int type) {
+        BluetoothEvent event = null;
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                event = sPool;
+                sPool = event.mNext;
+                event.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (event == null)
+            event = new BluetoothEvent();
+        event.type = type;
+        event.timestampNanos = System.nanoTime();
+        return event;
+    }
+
+    static BluetoothEvent stateChanged(int state) {
+        BluetoothEvent event = obtain(TYPE_STATE_CHANGED);
+        event.state = state;
+        return event;
+    }
+
+    static BluetoothEvent deviceConnected(String name, String address) {
+        BluetoothEvent event = obtain(TYPE_DEVICE_CONNECTED);
+        event.name = name;
+        event.address = address;
+        return event;
+    }
+
+    static BluetoothEvent dataRead(byte[] data, int length, long timestampNanos) {
+        BluetoothEvent event = obtain(TYPE_DATA_READ);
+        event.data = data;
+        event.length = length;
+        event.timestampNanos = timestampNanos;
+        return event;
+    }
+
+    void recycle() {
+        state = 0;
+        name = null;
+        address = null;
+        data = null;
+        length = 0;
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import de.wirecard.bluetoothspp.library.BluetoothSPP.OnDataReceivedListener;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Request/response layer on top of BluetoothSPP. Requests are written with
+// send() and answered by frames coming back through OnDataReceivedListener,
+// responses are matched to their request by a correlation ID so up to
+// maxOutstanding requests can be in flight at the same time.
+//
+// Register the instance as the data listener of the BluetoothSPP it sends
+// through. call() never blocks: requests beyond the pipelining window wait
+// in a local queue and are sent as soon as an earlier call completes. A
+// request whose ID is still in flight waits for that call, later requests
+// with other IDs go ahead of it. Calls made while not connected fail at once.
+// Requests are written in the order they enter the window, whichever
+// threads call and complete.
+public class BluetoothRpc implements OnDataReceivedListener {
+    private final RequestSender mSender;
+    private final CorrelationIdExtractor mIdExtractor;
+    private final FrameAssembler mAssembler;
+    private final int mMaxOutstanding;
+
+    private final HashMap<Integer, Call> mInFlight = new HashMap<Integer, Call>();
+    private final ArrayDeque<Call> mWaiting = new ArrayDeque<Call>();
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    private OnDataReceivedListener mUnmatchedListener = null;
+    private long mCompleted = 0;
+    private long mTimedOut = 0;
+    private long mUnmatched = 0;
+    // A thread is moving calls from mWaiting to the wire
+    private boolean isDispatching = false;
+
+    // Writes a request to the link
+    // return : false if it couldn't be sent, e.g. not connected
+    public interface RequestSender {
+        public boolean send(byte[] request);
+    }
+
+    // Extracts the correlation ID from requests and responses
+    public interface CorrelationIdExtractor {
+        public int getRequestId(byte[] request);
+        public int getResponseId(byte[] buffer, int offset, int length);
+    }
+
+    // bluetooth      : The connection requests are sent through
+    // decoder        : Splits the received stream into response frames
+    // idExtractor    : Pairs responses with requests
+    // maxOutstanding : Number of requests allowed in flight at once
+    public BluetoothRpc(final BluetoothSPP bluetooth, FrameDecoder decoder,
+                        CorrelationIdExtractor idExtractor, int maxOutstanding) {
+        this(new RequestSender() {
+            public boolean send(byte[] request) {
+                return bluetooth.trySend(request);
+            }
+        }, decoder, idExtractor, maxOutstanding);
+    }
+
+    // sender : Writes the requests, e.g. to a BluetoothService or a channel
+    //          of a ChannelMux. Feed the received data to onDataReceived().
+    public BluetoothRpc(RequestSender sender, FrameDecoder decoder,
+                        CorrelationIdExtractor idExtractor, int maxOutstanding) {
+        if (maxOutstanding < 1)
+            throw new IllegalArgumentException("maxOutstanding must be at least 1");
+        mSender = sender;
+        mIdExtractor = idExtractor;
+        mMaxOutstanding = maxOutstanding;
+        mAssembler = new FrameAssembler(decoder, 64 * 1024, new FrameAssembler.OnFrameReceivedListener() {
+            public void onFrameReceived(byte[] buffer, int offset, int length) {
+                onResponse(buffer, offset, length);
+            }
+        });
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BluetoothRpc timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // Send a request and return the future response
+    // payload       : The complete request frame including its ID
+    // timeoutMillis : Time from this call until the response, queueing included
+    public Future<byte[]> call(byte[] payload, long timeoutMillis) {
+        final Call call = new Call(mIdExtractor.getRequestId(payload), payload);
+        synchronized (this) {
+            if (mTimer.isShutdown()) {
+                call.fail(new IllegalStateException("BluetoothRpc is closed"));
+                return call;
+            }
+            call.mTimeout = mTimer.schedule(new Runnable() {
+                public void run() {
+                    timeout(call);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            mWaiting.add(call);
+        }
+        dispatchWaiting();
+        return call;
+    }
+
+    // Data not belonging to any outstanding call goes to this listener
+    public void setOnUnmatchedDataListener(OnDataReceivedListener listener) {
+        mUnmatchedListener = listener;
+    }
+
+    public void onDataReceived(byte[] data, int length) {
+        mAssembler.onDataReceived(data, length);
+    }
+
+    // Fail every queued and outstanding call, e.g. when the device disconnected
+    public void cancelAll() {
+        failAll(new CancellationException("Cancelled"));
+        mAssembler.reset();
+    }
+
+    // Cancel everything and stop the timeout thread
+    public void close() {
+        synchronized (this) {
+            mTimer.shutdownNow();
+        }
+        cancelAll();
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mInFlight.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return mWaiting.size();
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized long getTimedOutCount() {
+        return mTimedOut;
+    }
+
+    public synchronized long getUnmatchedCount() {
+        return mUnmatched;
+    }
+
+    // Round trip time from writing a request until its response arrived
+    public LatencyHistogram getLatencyHistogram() {
+        return mLatency;
+    }
+
+    private void onResponse(byte[] buffer, int offset, int length) {
+        int id = mIdExtractor.getResponseId(buffer, offset, length);
+        Call call;
+        synchronized (this) {
+            call = mInFlight.remove(id);
+            if (call != null)
+                mCompleted++;
+            else
+                mUnmatched++;
+        }
+        if (call == null) {
+            if (mUnmatchedListener != null) {
+                byte[] data = new byte[length];
+                System.arraycopy(buffer, offset, data, 0, length);
+                mUnmatchedListener.onDataReceived(data, length);
+            }
+            return;
+        }
+        mLatency.record(System.nanoTime() - call.mSentAt);
+        byte[] response = new byte[length];
+        System.arraycopy(buffer, offset, response, 0, length);
+        call.complete(response);
+        dispatchWaiting();
+    }
+
+    private void timeout(Call call) {
+        synchronized (this) {
+            if (!mWaiting.remove(call) && mInFlight.get(call.mId) != call)
+                return;
+            mInFlight.remove(call.mId);
+            mTimedOut++;
+        }
+        call.fail(new TimeoutException("No response for request " + call.mId));
+        dispatchWaiting();
+    }
+
+    private void cancel(Call call) {
+        synchronized (this) {
+            if (!mWaiting.remove(call) && mInFlight.get(call.mId) == call)
+                mInFlight.remove(call.mId);
+        }
+        dispatchWaiting();
+    }
+
+    private void failAll(Throwable cause) {
+        Call[] calls;
+        synchronized (this) {
+            calls = new Call[mInFlight.size() + mWaiting.size()];
+            int i = 0;
+            for (Call call : mInFlight.values())
+                calls[i++] = call;
+            for (Call call : mWaiting)
+                calls[i++] = call;
+            mInFlight.clear();
+            mWaiting.clear();
+        }
+        for (Call call : calls)
+            call.fail(cause);
+    }
+
+    // Move queued calls into the window while there is room. Only one
+    // thread at a time sends, so requests reach the wire in the order they
+    // entered the window. A thread finding another one sending leaves the
+    // work to it, the sender looks again before it gives up.
+    private void dispatchWaiting() {
+        synchronized (this) {
+            if (isDispatching)
+                return;
+            isDispatching = true;
+        }
+        boolean isDone = false;
+        try {
+            while (true) {
+                Call call = null;
+                synchronized (this) {
+                    if (mInFlight.size() < mMaxOutstanding) {
+                        Iterator<Call> it = mWaiting.iterator();
+                        while (it.hasNext()) {
+                            Call waiting = it.next();
+                            if (!mInFlight.containsKey(waiting.mId)) {
+                                it.remove();
+                                call = waiting;
+                                break;
+                            }
+                        }
+                    }
+                    if (call == null) {
+                        isDispatching = false;
+                        isDone = true;
+                        return;
+                    }
+                    call.mSentAt = System.nanoTime();
+                    mInFlight.put(call.mId, call);
+                }
+                if (!mSender.send(call.mRequest)) {
+                    synchronized (this) {
+                        if (mInFlight.get(call.mId) == call)
+                            mInFlight.remove(call.mId);
+                    }
+                    call.fail(new IOException("Not connected"));
+                }
+            }
+        } finally {
+            // The sender threw, let the next caller take over
+            if (!isDone) {
+                synchronized (this) {
+                    isDispatching = false;
+                }
+            }
+        }
+    }
+
+    private final class Call implements Future<byte[]> {
+        final int mId;
+        final byte[] mRequest;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile ScheduledFuture<?> mTimeout;
+        long mSentAt;
+        private byte[] mResponse;
+        private Throwable mFailure;
+        private boolean mCancelled;
+
+        Call(int id, byte[] request) {
+            mId = id;
+            mRequest = request;
+        }
+
+        void complete(byte[] response) {
+            synchronized (this) {
+                if (mDone.getCount() == 0)
+                    return;
+                mResponse = response;
+                mDone.countDown();
+            }
+            stopTimer();
+        }
+
+        void fail(Throwable cause) {
+            synchronized (this) {
+                if (mDone.getCount() == 0)
+                    return;
+                mFailure = cause;
+                mDone.countDown();
+            }
+            stopTimer();
+        }
+
+        // Removed from the queue right away, else it keeps the call until its
+        // deadline. setRemoveOnCancelPolicy() would do this but needs API 21.
+        private void stopTimer() {
+            ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null && timeout.cancel(false))
+                mTimer.remove((Runnable) timeout);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (mDone.getCount() == 0)
+                    return false;
+                mCancelled = true;
+                mFailure = new CancellationException("Request " + mId + " cancelled");
+                mDone.countDown();
+            }
+            stopTimer();
+            BluetoothRpc.this.cancel(this);
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        public byte[] get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private synchronized byte[] result() throws ExecutionException {
+            if (mFailure instanceof CancellationException)
+                throw (CancellationException) mFailure;
+            if (mFailure != null)
+                throw new ExecutionException(mFailure);
+            return mResponse;
+        }
+    }
+}
@@ -21,19 +21,37 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressLint("NewApi")
 public class BluetoothSPP {
     // Listener for Bluetooth Status & Connection
+    private final ListenerList<BluetoothStateListener> mStateListeners = new ListenerList<BluetoothStateListener>();
+    private final ListenerList<OnDataReceivedListener> mDataReceivedListeners = new ListenerList<OnDataReceivedListener>();
+    private final ListenerList<OnTimedDataReceivedListener> mTimedDataListeners = new ListenerList<OnTimedDataReceivedListener>();
+    private final ListenerList<BluetoothConnectionListener> mConnectionListeners = new ListenerList<BluetoothConnectionListener>();
+    // The ones set by the setters, replaced on the next call
     private BluetoothStateListener mBluetoothStateListener = null;
     private OnDataReceivedListener mDataReceivedListener = null;
     private BluetoothConnectionListener mBluetoothConnectionListener = null;
     private AutoConnectionListener mAutoConnectionListener = null;
+    private volatile OnDataSentListener mDataSentListener = null;
+    private final WriteNotifier mWriteNotifier = new WriteNotifier();
+    private OnMetricsListener mMetricsListener = null;
+    private long mMetricsPeriod = 0;
 
     // Context from activity which call this class
     private Context mContext;
@@ -44,22 +62,32 @@ public class BluetoothSPP {
     // Member object for the chat services
     private BluetoothService mChatService = null;
     private final Handler mHandler;
+    // Stands in for mHandler off Android, see BluetoothSPP(Executor)
+    private final Executor mMainThread;
 
-    // Name and Address of the connected device
-    private String mDeviceName = null;
-    private String mDeviceAddress = null;
+    // Only message the Handler gets from the service, obj is a BluetoothEvent
+    private static final int MESSAGE_EVENT = 1;
+    private volatile boolean isDirectDispatch = false;
+    private volatile OutboundBuffer mOutboundBuffer = null;
+    private volatile OutboundJournal mOutboundJournal = null;
 
-    private boolean isAutoConnecting = false;
+    // Name and Address of the connected device. Like isConnected they are
+    // written on the main thread by handleEvent() and read from any thread.
+    private volatile String mDeviceName = null;
+    private volatile String mDeviceAddress = null;
+
+    private volatile boolean isAutoConnecting = false;
     private boolean isAutoConnectionEnabled = false;
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
     private boolean isConnecting = false;
     private boolean isServiceRunning = false;
 
     private String keyword = "";
     private boolean isAndroid = BluetoothState.DEVICE_ANDROID;
 
-    // This is where we store the callback if AutoConnection is enabled
-    private BluetoothConnectionListener mBluetoothConnectionListenerSecondary = null;
+    // Paired devices matching the keyword of autoConnect(), tried in turn
+    private final ArrayList<String> mAutoConnectAddresses = new ArrayList<String>();
+    private final ArrayList<String> mAutoConnectNames = new ArrayList<String>();
 
     private int c = 0;
 
@@ -69,55 +97,127 @@ public class BluetoothSPP {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         mHandler = new Handler() {
             public void handleMessage(Message msg) {
-                switch (msg.what) {
-                    case BluetoothState.MESSAGE_WRITE:
-                        break;
-                    case BluetoothState.MESSAGE_READ:
-                        int bytes = msg.arg1;
-                        if (bytes > 0 && mDataReceivedListener != null) {
-                            byte[] readBuf = (byte[]) msg.obj;
-                            mDataReceivedListener.onDataReceived(readBuf, bytes);
-                        }
-                        break;
-                    case BluetoothState.MESSAGE_DEVICE_NAME:
-                        mDeviceName = msg.getData().getString(BluetoothState.DEVICE_NAME);
-                        mDeviceAddress = msg.getData().getString(BluetoothState.DEVICE_ADDRESS);
-                        if(mBluetoothConnectionListener != null)
-                            mBluetoothConnectionListener.onDeviceConnected(mDeviceName, mDeviceAddress);
-                        isConnected = true;
-                        break;
-                    case BluetoothState.MESSAGE_TOAST:
-                        Toast.makeText(mContext, msg.getData().getString(BluetoothState.TOAST)
-                                , Toast.LENGTH_SHORT).show();
-                        break;
-                    case BluetoothState.MESSAGE_STATE_CHANGE:
-                        if(mBluetoothStateListener != null)
-                            mBluetoothStateListener.onServiceStateChanged(msg.arg1);
-                        if(isConnected && msg.arg1 != BluetoothState.STATE_CONNECTED) {
-                            if(mBluetoothConnectionListener != null)
-                                mBluetoothConnectionListener.onDeviceDisconnected();
-                            if(isAutoConnectionEnabled) {
-                                isAutoConnectionEnabled = false;
-                                autoConnect(keyword);
-                            }
-                            isConnected = false;
-                            mDeviceName = null;
-                            mDeviceAddress = null;
-                        }
-
-                        if(!isConnecting && msg.arg1 == BluetoothState.STATE_CONNECTING) {
-                            isConnecting = true;
-                        } else if(isConnecting) {
-                            if(msg.arg1 != BluetoothState.STATE_CONNECTED) {
-                                if(mBluetoothConnectionListener != null)
-                                    mBluetoothConnectionListener.onDeviceConnectionFailed();
-                            }
-                            isConnecting = false;
-                        }
-                        break;
-                }
+                if (msg.what == MESSAGE_EVENT)
+                    handleEvent((BluetoothEvent) msg.obj);
             }
         };
+        mMainThread = null;
+    }
+
+    // For a plain JVM, like the benchmarks: events for the main thread run on
+    // mainThread. Only a service set up with setupService(Transport), the
+    // listeners, send() and sendStream() work this way, there is no adapter
+    // or Handler.
+    BluetoothSPP(Executor mainThread) {
+        mHandler = null;
+        mMainThread = mainThread;
+    }
+
+    // Runs a task on the main thread, through mMainThread off Android
+    private final Executor mPoster = new Executor() {
+        public void execute(Runnable task) {
+            if (mMainThread != null)
+                mMainThread.execute(task);
+            else
+                mHandler.post(task);
+        }
+    };
+
+    // Events of the service, passed on to the main thread. Only data may be
+    // handled right on the reader thread: state events come with the lock of
+    // the service held, and their handling flushes, reconnects and shows Toasts.
+    private class ServiceCallback implements BluetoothService.Callback {
+        public void onStateChanged(int state) {
+            post(BluetoothEvent.stateChanged(state));
+        }
+
+        public void onDeviceConnected(String name, String address) {
+            post(BluetoothEvent.deviceConnected(name, address));
+        }
+
+        public void onDataRead(byte[] data, int length, long timestampNanos) {
+            BluetoothEvent event = BluetoothEvent.dataRead(data, length, timestampNanos);
+            if (isDirectDispatch)
+                handleEvent(event);
+            else
+                post(event);
+        }
+
+        private void post(final BluetoothEvent event) {
+            if (mMainThread != null) {
+                mMainThread.execute(new Runnable() {
+                    public void run() {
+                        handleEvent(event);
+                    }
+                });
+            } else {
+                mHandler.obtainMessage(MESSAGE_EVENT, event).sendToTarget();
+            }
+        }
+    }
+
+    private void handleEvent(BluetoothEvent event) {
+        switch (event.type) {
+            case BluetoothEvent.TYPE_DATA_READ:
+                if (mChatService != null)
+                    mChatService.getMetrics().onDispatched(System.nanoTime() - event.timestampNanos);
+                dispatchDataReceived(event.data, event.length, event.timestampNanos);
+                break;
+            case BluetoothEvent.TYPE_DEVICE_CONNECTED:
+                mDeviceName = event.name;
+                mDeviceAddress = event.address;
+                dispatchDeviceConnected(mDeviceName, mDeviceAddress);
+                isConnected = true;
+                break;
+            case BluetoothEvent.TYPE_STATE_CHANGED:
+                int state = event.state;
+                OutboundBuffer buffer = mOutboundBuffer;
+                OutboundJournal journal = mOutboundJournal;
+                if (state == BluetoothState.STATE_CONNECTED && mChatService != null) {
+                    if (journal != null) {
+                        // Unacknowledged messages may not have made it over the old link
+                        journal.rewind();
+                        journal.startFlush(mChatService);
+                    } else if (buffer != null) {
+                        buffer.startFlush(mChatService);
+                    }
+                }
+                dispatchServiceStateChanged(state);
+                if(isConnected && state != BluetoothState.STATE_CONNECTED) {
+                    dispatchDeviceDisconnected();
+                    if(isAutoConnectionEnabled) {
+                        isAutoConnectionEnabled = false;
+                        autoConnect(keyword);
+                    }
+                    isConnected = false;
+                    mDeviceName = null;
+                    mDeviceAddress = null;
+                }
+
+                if(!isConnecting && state == BluetoothState.STATE_CONNECTING) {
+                    isConnecting = true;
+                } else if(isConnecting) {
+                    if(state != BluetoothState.STATE_CONNECTED) {
+                        dispatchDeviceConnectionFailed();
+                    }
+                    isConnecting = false;
+                }
+                break;
+        }
+        event.recycle();
+    }
+
+    // Call the data listeners right on the reader thread instead of the
+    // main thread. Saves the thread switch for every read; listeners then
+    // must not block and must post UI work themselves. State and connection
+    // listeners stay on the main thread, so the first data of a connection
+    // may arrive before onDeviceConnected().
+    public void setDirectDispatch(boolean direct) {
+        isDirectDispatch = direct;
+    }
+
+    public boolean isDirectDispatch() {
+        return isDirectDispatch;
     }
 
     public interface BluetoothStateListener {
@@ -128,6 +228,24 @@ public class BluetoothSPP {
         public void onDataReceived(byte[] data, int length);
     }
 
+    // Like OnDataReceivedListener with the arrival time of the chunk, for
+    // data that must be timed without the delay of getting to the listener.
+    // timestampNanos : System.nanoTime() right after read() returned
+    public interface OnTimedDataReceivedListener {
+        public void onDataReceived(byte[] data, int length, long timestampNanos);
+    }
+
+    // Called on the main thread after data was written to the socket. Writes
+    // are batched: one call covers everything written since the last call.
+    // lastWriteNanos : System.nanoTime() of the last write in the batch
+    public interface OnDataSentListener {
+        public void onDataSent(long bytes, int messages, long lastWriteNanos);
+    }
+
+    public interface OnMetricsListener {
+        public void onMetrics(ConnectionMetrics.Snapshot metrics);
+    }
+
     public interface BluetoothConnectionListener {
         public void onDeviceConnected(String name, String address);
         public void onDeviceDisconnected();
@@ -174,7 +292,16 @@ public class BluetoothSPP {
     }
 
     public void setupService() {
-        mChatService = new BluetoothService(mContext, mHandler);
+        setupService(new RfcommTransport(mBluetoothAdapter));
+    }
+
+    // Use another transport than Bluetooth RFCOMM, e.g. a TcpTransport to
+    // talk to a desktop peer from the emulator
+    public void setupService(Transport transport) {
+        mChatService = new BluetoothService(transport, new ServiceCallback());
+        mChatService.getMetrics().trackDispatch();
+        if (mDataSentListener != null)
+            mChatService.setWriteObserver(mWriteNotifier);
     }
 
     public BluetoothAdapter getBluetoothAdapter() {
@@ -189,6 +316,8 @@ public class BluetoothSPP {
     }
 
     public void startService(boolean isAndroid) {
+        if (mHandler != null)
+            mHandler.removeCallbacks(mDelayedStop);
         if (mChatService != null) {
             if (mChatService.getState() == BluetoothState.STATE_NONE) {
                 isServiceRunning = true;
@@ -203,16 +332,23 @@ public class BluetoothSPP {
             isServiceRunning = false;
             mChatService.stop();
         }
-        new Handler().postDelayed(new Runnable() {
-            public void run() {
-                if (mChatService != null) {
-                    isServiceRunning = false;
-                    mChatService.stop();
-                }
-            }
-        }, 500);
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mDelayedStop);
+            mHandler.postDelayed(mDelayedStop, 500);
+        }
     }
 
+    // Stops the service once more after stopService(), unless startService()
+    // came first and the new session must live
+    private final Runnable mDelayedStop = new Runnable() {
+        public void run() {
+            if (mChatService != null) {
+                isServiceRunning = false;
+                mChatService.stop();
+            }
+        }
+    };
+
     public void setDeviceTarget(boolean isAndroid) {
         stopService();
         startService(isAndroid);
@@ -220,22 +356,22 @@ public class BluetoothSPP {
     }
 
     public void stopAutoConnect() {
-        if (isAutoConnectionEnabled) {
-            isAutoConnectionEnabled = false;
-            // Restore the previous callback
-            mBluetoothConnectionListener = mBluetoothConnectionListenerSecondary;
-        }
+        isAutoConnectionEnabled = false;
     }
 
     public void connect(Intent data) {
         String address = data.getExtras().getString(BluetoothState.EXTRA_DEVICE_ADDRESS);
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        mChatService.connect(device);
+        mChatService.connect(address);
     }
 
     public void connect(String address) {
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        mChatService.connect(device);
+        mChatService.connect(address);
+    }
+
+    // Play a recorded session through the receive path, e.g.
+    // replay(new ReplayInputStream(captureFile, ReplayInputStream.ORIGINAL_TIMING))
+    public void replay(InputStream source) {
+        mChatService.replay(source, "Replay");
     }
 
     public void disconnect() {
@@ -249,20 +385,266 @@ public class BluetoothSPP {
         }
     }
 
+    // Replaces the listener of the previous call, others added stay
     public void setBluetoothStateListener (BluetoothStateListener listener) {
+        if (mBluetoothStateListener != null)
+            mStateListeners.remove(mBluetoothStateListener);
         mBluetoothStateListener = listener;
+        if (listener != null)
+            mStateListeners.add(listener, null);
+    }
+
+    public void addBluetoothStateListener(BluetoothStateListener listener) {
+        mStateListeners.add(listener, null);
+    }
+
+    // executor : Runs the calls, null for the main thread
+    public void addBluetoothStateListener(BluetoothStateListener listener, Executor executor) {
+        mStateListeners.add(listener, executor);
     }
 
+    public void removeBluetoothStateListener(BluetoothStateListener listener) {
+        mStateListeners.remove(listener);
+    }
+
+    // Replaces the listener of the previous call, others added stay
     public void setOnDataReceivedListener (OnDataReceivedListener listener) {
+        if (mDataReceivedListener != null)
+            mDataReceivedListeners.remove(mDataReceivedListener);
         mDataReceivedListener = listener;
+        if (listener != null)
+            addOnDataReceivedListener(listener, null);
+    }
+
+    // All listeners get the same array, they must not modify it
+    public void addOnDataReceivedListener(OnDataReceivedListener listener) {
+        addOnDataReceivedListener(listener, null);
+    }
+
+    // executor : Runs the calls, null for the main thread. A slow listener
+    //            with its own executor doesn't hold up the others.
+    // A listener of both kinds, like FrameAssembler, is only called through
+    // the list it was added to last, so it never gets a chunk twice.
+    public void addOnDataReceivedListener(OnDataReceivedListener listener, Executor executor) {
+        if (listener instanceof OnTimedDataReceivedListener)
+            mTimedDataListeners.remove((OnTimedDataReceivedListener) listener);
+        mDataReceivedListeners.add(listener, executor);
+    }
+
+    public void removeOnDataReceivedListener(OnDataReceivedListener listener) {
+        mDataReceivedListeners.remove(listener);
+    }
+
+    public void addOnTimedDataReceivedListener(OnTimedDataReceivedListener listener) {
+        addOnTimedDataReceivedListener(listener, null);
     }
 
+    // executor : Runs the calls, null for the main thread
+    public void addOnTimedDataReceivedListener(OnTimedDataReceivedListener listener, Executor executor) {
+        if (listener instanceof OnDataReceivedListener) {
+            OnDataReceivedListener untimed = (OnDataReceivedListener) listener;
+            if (mDataReceivedListener == untimed)
+                mDataReceivedListener = null;
+            mDataReceivedListeners.remove(untimed);
+        }
+        mTimedDataListeners.add(listener, executor);
+    }
+
+    public void removeOnTimedDataReceivedListener(OnTimedDataReceivedListener listener) {
+        mTimedDataListeners.remove(listener);
+    }
+
+    // Counters of the current service, null before setupService()
+    public ConnectionMetrics getMetrics() {
+        return mChatService != null ? mChatService.getMetrics() : null;
+    }
+
+    // Blocking streams of the current connection, null if not connected.
+    // The input stream only sees data received after the first call, see
+    // BluetoothService.getInputStream().
+    public InputStream getInputStream() {
+        return mChatService != null ? mChatService.getInputStream() : null;
+    }
+
+    public OutputStream getOutputStream() {
+        return mChatService != null ? mChatService.getOutputStream() : null;
+    }
+
+    // Received data as a stream with backpressure, null before setupService().
+    // While subscribed, reads only happen as far as the subscriber requested.
+    public InboundPublisher getInboundPublisher() {
+        return mChatService != null ? mChatService.getInbound() : null;
+    }
+
+    // Report a metrics snapshot on the main thread every periodMillis,
+    // a null listener stops the reports
+    public void setOnMetricsListener(OnMetricsListener listener, long periodMillis) {
+        // An Executor can't schedule the reports, poll getMetrics() instead
+        if (mHandler == null)
+            throw new IllegalStateException("Periodic metrics need the Handler of BluetoothSPP(Context)");
+        mHandler.removeCallbacks(mMetricsReporter);
+        mMetricsListener = listener;
+        mMetricsPeriod = periodMillis;
+        if (listener != null && periodMillis > 0)
+            mHandler.postDelayed(mMetricsReporter, periodMillis);
+    }
+
+    private final Runnable mMetricsReporter = new Runnable() {
+        public void run() {
+            if (mMetricsListener == null)
+                return;
+            if (mChatService != null)
+                mMetricsListener.onMetrics(mChatService.getMetrics().snapshot());
+            mHandler.postDelayed(this, mMetricsPeriod);
+        }
+    };
+
+    // Event trace of the current service, null before setupService()
+    public Tracer getTracer() {
+        return mChatService != null ? mChatService.getTracer() : null;
+    }
+
+    // Record the raw traffic into a ring file, null to stop recording
+    public void setWireCapture(WireCapture capture) {
+        mChatService.setWireCapture(capture);
+    }
+
+    // Called with every read on the reader thread, e.g. an InboundRecorder
+    // that logs the stream to disk. null turns the calls off.
+    public void setReadObserver(BluetoothService.ReadObserver observer) {
+        mChatService.setReadObserver(observer);
+    }
+
+    // observerOnly : true to skip the data listeners, the reads then
+    //                allocate nothing and post no events to the main thread
+    public void setReadObserver(BluetoothService.ReadObserver observer, boolean observerOnly) {
+        mChatService.setReadObserver(observer, observerOnly);
+    }
+
+    // Write notifications cost nothing until a listener is set
+    public void setOnDataSentListener (OnDataSentListener listener) {
+        mDataSentListener = listener;
+        if (mChatService != null)
+            mChatService.setWriteObserver(listener != null ? mWriteNotifier : null);
+    }
+
+    // Replaces the listener of the previous call, others added stay
     public void setBluetoothConnectionListener (BluetoothConnectionListener listener) {
-        // We can't replace the primary callback if AutoConnection is enabled
-        if (isAutoConnectionEnabled) {
-            mBluetoothConnectionListenerSecondary = listener;
+        if (mBluetoothConnectionListener != null)
+            mConnectionListeners.remove(mBluetoothConnectionListener);
+        mBluetoothConnectionListener = listener;
+        if (listener != null)
+            mConnectionListeners.add(listener, null);
+    }
+
+    public void addBluetoothConnectionListener(BluetoothConnectionListener listener) {
+        mConnectionListeners.add(listener, null);
+    }
+
+    // executor : Runs the calls, null for the main thread
+    public void addBluetoothConnectionListener(BluetoothConnectionListener listener, Executor executor) {
+        mConnectionListeners.add(listener, executor);
+    }
+
+    public void removeBluetoothConnectionListener(BluetoothConnectionListener listener) {
+        mConnectionListeners.remove(listener);
+    }
+
+    private void dispatchDataReceived(final byte[] data, final int length, final long timestampNanos) {
+        for (final ListenerList.Entry<OnDataReceivedListener> entry : mDataReceivedListeners) {
+            if (entry.executor == null) {
+                entry.listener.onDataReceived(data, length);
+            } else {
+                entry.executor.execute(new Runnable() {
+                    public void run() {
+                        entry.listener.onDataReceived(data, length);
+                    }
+                });
+            }
+        }
+        for (final ListenerList.Entry<OnTimedDataReceivedListener> entry : mTimedDataListeners) {
+            if (entry.executor == null) {
+                entry.listener.onDataReceived(data, length, timestampNanos);
+            } else {
+                entry.executor.execute(new Runnable() {
+                    public void run() {
+                        entry.listener.onDataReceived(data, length, timestampNanos);
+                    }
+                });
+            }
+        }
+    }
+
+    private void dispatchServiceStateChanged(final int state) {
+        for (final ListenerList.Entry<BluetoothStateListener> entry : mStateListeners) {
+            if (entry.executor == null) {
+                entry.listener.onServiceStateChanged(state);
+            } else {
+                entry.executor.execute(new Runnable() {
+                    public void run() {
+                        entry.listener.onServiceStateChanged(state);
+                    }
+                });
+            }
+        }
+    }
+
+    private void dispatchDeviceConnected(final String name, final String address) {
+        isAutoConnecting = false;
+        for (final ListenerList.Entry<BluetoothConnectionListener> entry : mConnectionListeners) {
+            if (entry.executor == null) {
+                entry.listener.onDeviceConnected(name, address);
+            } else {
+                entry.executor.execute(new Runnable() {
+                    public void run() {
+                        entry.listener.onDeviceConnected(name, address);
+                    }
+                });
+            }
+        }
+    }
+
+    private void dispatchDeviceDisconnected() {
+        for (final ListenerList.Entry<BluetoothConnectionListener> entry : mConnectionListeners) {
+            if (entry.executor == null) {
+                entry.listener.onDeviceDisconnected();
+            } else {
+                entry.executor.execute(new Runnable() {
+                    public void run() {
+                        entry.listener.onDeviceDisconnected();
+                    }
+                });
+            }
+        }
+    }
+
+    private void dispatchDeviceConnectionFailed() {
+        if (isAutoConnectionEnabled && mAutoConnectAddresses.size() > 0) {
+            // Failures of a stopped service are not reported
+            if (!isServiceRunning)
+                return;
+            // Try the next matching device
+            c++;
+            if (c >= mAutoConnectAddresses.size())
+                c = 0;
+            isAutoConnecting = true;
+            connect(mAutoConnectAddresses.get(c));
+            if (mAutoConnectionListener != null)
+                mAutoConnectionListener.onNewConnection(mAutoConnectNames.get(c), mAutoConnectAddresses.get(c));
         } else {
-            mBluetoothConnectionListener = listener;
+            isAutoConnecting = false;
+        }
+
+        for (final ListenerList.Entry<BluetoothConnectionListener> entry : mConnectionListeners) {
+            if (entry.executor == null) {
+                entry.listener.onDeviceConnectionFailed();
+            } else {
+                entry.executor.execute(new Runnable() {
+                    public void run() {
+                        entry.listener.onDeviceConnectionFailed();
+                    }
+                });
+            }
         }
     }
 
@@ -275,15 +657,178 @@ public class BluetoothSPP {
     }
 
     public void send(byte[] data) {
-        if (mChatService.getState() == BluetoothState.STATE_CONNECTED) {
-            mChatService.write(data);
-        }
+        trySend(data, 0, data.length, BluetoothState.PRIORITY_NORMAL);
     }
 
     public void send(String data) {
-        if (mChatService.getState() == BluetoothState.STATE_CONNECTED) {
-            mChatService.write(data.getBytes());
+        trySend(data, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    // priority : BluetoothState.PRIORITY_URGENT, PRIORITY_NORMAL or PRIORITY_BULK
+    public void send(byte[] data, int priority) {
+        trySend(data, 0, data.length, priority);
+    }
+
+    public void send(String data, int priority) {
+        trySend(data, priority);
+    }
+
+    // Send a slice of a larger buffer, the buffer may be reused on return
+    public void send(byte[] data, int offset, int length) {
+        trySend(data, offset, length, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    public void send(byte[] data, int offset, int length, int priority) {
+        trySend(data, offset, length, priority);
+    }
+
+    // Send the remaining bytes of a heap or direct buffer and advance its position
+    public void send(ByteBuffer data) {
+        trySend(data, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    public void send(ByteBuffer data, int priority) {
+        trySend(data, priority);
+    }
+
+    // Send text encoded with the charset set by setCharset(), without
+    // allocating once the internal buffers fit the longest message
+    public void send(CharSequence data) {
+        trySend(data, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    public void send(CharSequence data, int priority) {
+        trySend(data, priority);
+    }
+
+    // Like send(), but tells whether the message was taken
+    // return : false if it was dropped, i.e. not connected without an
+    //          OutboundBuffer or OutboundJournal, or the journal is full
+    public boolean trySend(byte[] data) {
+        return trySend(data, 0, data.length, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    public boolean trySend(byte[] data, int offset, int length, int priority) {
+        OutboundJournal journal = mOutboundJournal;
+        OutboundBuffer buffer = mOutboundBuffer;
+        if (journal != null) {
+            if (journal.append(data, offset, length, priority) < 0)
+                return false;
+            flushJournal(journal);
+            return true;
+        } else if (buffer != null) {
+            buffer.send(mChatService, data, offset, length, priority);
+            return true;
         }
+        return mChatService.getState() == BluetoothState.STATE_CONNECTED
+                && mChatService.write(data, offset, length, priority);
+    }
+
+    public boolean trySend(ByteBuffer data, int priority) {
+        OutboundBuffer buffer = mOutboundBuffer;
+        if (mOutboundJournal != null) {
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            return trySend(copy, 0, copy.length, priority);
+        } else if (buffer != null) {
+            buffer.send(mChatService, data, priority);
+            return true;
+        }
+        return mChatService.getState() == BluetoothState.STATE_CONNECTED
+                && mChatService.write(data, priority);
+    }
+
+    public boolean trySend(CharSequence data, int priority) {
+        OutboundBuffer buffer = mOutboundBuffer;
+        if (mOutboundJournal != null) {
+            byte[] encoded = data.toString().getBytes(mChatService.getCharset());
+            return trySend(encoded, 0, encoded.length, priority);
+        } else if (buffer != null) {
+            buffer.send(mChatService, data, priority);
+            return true;
+        }
+        return mChatService.getState() == BluetoothState.STATE_CONNECTED
+                && mChatService.write(data, priority);
+    }
+
+    // Hold what is sent while not connected and write it once connected
+    // again, instead of dropping it. null turns holding off and drops
+    // whatever is still held.
+    public void setOutboundBuffer(OutboundBuffer buffer) {
+        OutboundBuffer previous = mOutboundBuffer;
+        mOutboundBuffer = buffer;
+        if (previous != null && previous != buffer)
+            previous.clear();
+    }
+
+    public OutboundBuffer getOutboundBuffer() {
+        return mOutboundBuffer;
+    }
+
+    // Journal every message sent before writing it, so that it survives a
+    // crash of the app until acknowledged, see OutboundJournal. Takes the
+    // place of an OutboundBuffer while set. Messages left over from an
+    // earlier run are sent once connected.
+    public void setOutboundJournal(OutboundJournal journal) {
+        mOutboundJournal = journal;
+        if (journal != null)
+            flushJournal(journal);
+    }
+
+    public OutboundJournal getOutboundJournal() {
+        return mOutboundJournal;
+    }
+
+    private void flushJournal(OutboundJournal journal) {
+        if (mChatService != null && mChatService.getState() == BluetoothState.STATE_CONNECTED)
+            journal.startFlush(mChatService);
+    }
+
+    // Charset for sending text, the platform default unless set
+    public void setCharset(Charset charset) {
+        mChatService.setCharset(charset);
+    }
+
+    // Stream a file or any other source on the bulk lane without loading it
+    // into memory. The listener is called on the main thread.
+    // chunkSize : Size of the reusable read buffer
+    public StreamTransfer sendStream(InputStream input, int chunkSize,
+                                     StreamTransfer.TransferListener listener) {
+        StreamTransfer transfer = new StreamTransfer(mChatService, mPoster, input, chunkSize, listener);
+        transfer.start();
+        return transfer;
+    }
+
+    // Stream the remainder of a FileChannel, starting at its current position
+    public StreamTransfer sendStream(FileChannel channel, int chunkSize,
+                                     StreamTransfer.TransferListener listener) throws IOException {
+        StreamTransfer transfer = new StreamTransfer(mChatService, mPoster, channel, chunkSize, listener);
+        transfer.start();
+        return transfer;
+    }
+
+    // Split outgoing data into chunks of chunkSize bytes, urgent data is
+    // written at the next chunk boundary of a lower priority message
+    public void setChunking(int chunkSize, int laneCapacity) {
+        mChatService.setChunking(chunkSize, laneCapacity);
+    }
+
+    // Limit the write rate for peers with small receive buffers
+    // bytesPerSecond : Sustained rate, 0 turns the rate limit off
+    // burstSize      : Bytes written back to back before pacing kicks in
+    // frameGapMillis : Pause between two messages, 0 for none
+    public void setPacing(int bytesPerSecond, int burstSize, int frameGapMillis) {
+        mChatService.getPacer().configure(bytesPerSecond, burstSize, frameGapMillis);
+    }
+
+    // Achieved rate and time spent throttled
+    public OutboundPacer getPacer() {
+        return mChatService.getPacer();
+    }
+
+    // Time data of the given priority waited until it was written
+    public LatencyHistogram getQueueLatency(int priority) {
+        return mChatService.getQueueLatency(priority);
     }
 
     public String getConnectedDeviceName() {
@@ -323,74 +868,57 @@ public class BluetoothSPP {
             isAutoConnectionEnabled = true;
             if(mAutoConnectionListener != null)
                 mAutoConnectionListener.onAutoConnectionStarted();
-            final ArrayList<String> arr_filter_address = new ArrayList<String>();
-            final ArrayList<String> arr_filter_name = new ArrayList<String>();
+            mAutoConnectAddresses.clear();
+            mAutoConnectNames.clear();
             String[] arr_name = getPairedDeviceName();
             String[] arr_address = getPairedDeviceAddress();
             for(int i = 0 ; i < arr_name.length ; i++) {
                 if(arr_name[i].contains(keywordName)) {
-                    arr_filter_address.add(arr_address[i]);
-                    arr_filter_name.add(arr_name[i]);
+                    mAutoConnectAddresses.add(arr_address[i]);
+                    mAutoConnectNames.add(arr_name[i]);
                 }
             }
 
-            // Save the previously existing callback
-            mBluetoothConnectionListenerSecondary = mBluetoothConnectionListener;
-
-            mBluetoothConnectionListener = new BluetoothConnectionListener() {
-                public void onDeviceConnected(String name, String address) {
-                    isAutoConnecting = false;
-                    // Run the secondary callback
-                    if(mBluetoothConnectionListenerSecondary != null) {
-                        mBluetoothConnectionListenerSecondary.onDeviceConnected(name,address);
-                    }
-                }
-
-                public void onDeviceDisconnected() {
-                    // Run the secondary callback
-                    if(mBluetoothConnectionListenerSecondary != null) {
-                        mBluetoothConnectionListenerSecondary.onDeviceDisconnected();
-                    }
-
-                }
-                public void onDeviceConnectionFailed() {
-                	Log.e("CHeck", "Failed");
-                    if(isServiceRunning) {
-                        if(isAutoConnectionEnabled) {
-                            c++;
-                            if(c >= arr_filter_address.size())
-                                c = 0;
-                            isAutoConnecting = true;
-                            connect(arr_filter_address.get(c));
-                            Log.e("CHeck", "Connect");
-                            if(mAutoConnectionListener != null)
-                                mAutoConnectionListener.onNewConnection(arr_filter_name.get(c)
-                                    , arr_filter_address.get(c));
-                        } else {
-                            isAutoConnecting = false;
-                        }
-
-                        // Run the secondary callback (can't fail is AutoConnection is disabled)
-                        if(mBluetoothConnectionListenerSecondary != null) {
-                            mBluetoothConnectionListenerSecondary.onDeviceConnectionFailed();
-                        }
-
-                    }
-                }
-            };
-
+            // Failed connects move on to the next device, see dispatchDeviceConnectionFailed()
             c = 0;
-            if (arr_filter_address.size() > 0) {
+            if (mAutoConnectAddresses.size() > 0) {
                 if (!isConnected) {
                     // Connect() breaks when it's already connected
                     if(mAutoConnectionListener != null)
-                        mAutoConnectionListener.onNewConnection(arr_name[c], arr_address[c]);
+                        mAutoConnectionListener.onNewConnection(mAutoConnectNames.get(c), mAutoConnectAddresses.get(c));
                     isAutoConnecting = true;
-                    connect(arr_filter_address.get(c));
+                    connect(mAutoConnectAddresses.get(c));
                 }
             } else {
                 Toast.makeText(mContext, "Device name mismatch", Toast.LENGTH_SHORT).show();
             }
         }
     }
+
+    // Collects writes on the writer thread and hands them to the main thread
+    // with at most one pending post, reusing itself as the Runnable
+    private class WriteNotifier implements BluetoothService.WriteObserver, Runnable {
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicInteger mMessages = new AtomicInteger();
+        private final AtomicBoolean isPosted = new AtomicBoolean();
+        private volatile long mLastWrite = 0;
+
+        public void onChunkWritten(int bytes, boolean endOfMessage, long timestampNanos) {
+            mBytes.addAndGet(bytes);
+            if (endOfMessage)
+                mMessages.incrementAndGet();
+            mLastWrite = timestampNanos;
+            if (isPosted.compareAndSet(false, true))
+                mPoster.execute(this);
+        }
+
+        public void run() {
+            isPosted.set(false);
+            long bytes = mBytes.getAndSet(0);
+            int messages = mMessages.getAndSet(0);
+            OnDataSentListener listener = mDataSentListener;
+            if (listener != null && bytes > 0)
+                listener.onDataSent(bytes, messages, mLastWrite);
+        }
+    }
 }
@@ -19,77 +19,109 @@ package de.wirecard.bluetoothspp.library;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
 @SuppressLint("NewApi")
 public class BluetoothService {
-    // Debugging
-    private static final String TAG = "Bluetooth Service";
-
     // Name for the SDP record when creating server socket
     private static final String NAME_SECURE = "Bluetooth Secure";
 
-    // Unique UUID for this application
-    private static final UUID UUID_ANDROID_DEVICE =
-            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID UUID_OTHER_DEVICE =
-            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // Address reported for sessions started by replay()
+    public static final String REPLAY_ADDRESS = "00:00:00:00:00:00";
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final Transport mTransport;
+    private final Callback mCallback;
     private AcceptThread mSecureAcceptThread;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
     private boolean isAndroid = BluetoothState.DEVICE_ANDROID;
 
+    // Priority lanes feeding the writer thread of the current connection
+    private final OutboundScheduler mOutbound = new OutboundScheduler();
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics(mOutbound);
+    private final Tracer mTracer = new Tracer();
+    private volatile WireCapture mCapture = null;
+    private volatile ReadObserver mReadObserver = null;
+    private volatile boolean isObserverOnly = false;
+    private final InboundPublisher mInbound = new InboundPublisher();
+
+    // Reused by write(CharSequence) so that encoding text allocates nothing
+    private final Object mEncoderLock = new Object();
+    private CharsetEncoder mEncoder = newEncoder(Charset.defaultCharset());
+    private CharBuffer mCharBuffer = CharBuffer.allocate(256);
+    private ByteBuffer mByteBuffer = ByteBuffer.allocate(256);
+
+    // Told about every chunk the writer thread has written, on that thread
+    public interface WriteObserver {
+        public void onChunkWritten(int bytes, boolean endOfMessage, long timestampNanos);
+    }
+
+    // Told about every read on the reader thread, before the Callback.
+    // data is only valid during the call, implementations must not block.
+    public interface ReadObserver {
+        public void onChunkRead(byte[] data, int length, long timestampNanos);
+    }
+
+    // Receives the events of the service on the thread they happen on.
+    // Implementations must not block, they hold up the connection threads.
+    public interface Callback {
+        public void onStateChanged(int state);
+        public void onDeviceConnected(String name, String address);
+        // data           : Owned by the callback, the reader uses a new buffer for every read
+        // length         : Never 0, empty reads are not reported
+        // timestampNanos : System.nanoTime() right after read() returned
+        public void onDataRead(byte[] data, int length, long timestampNanos);
+    }
+
     // Constructor. Prepares a new BluetoothChat session
     // context : The UI Activity Context
     // handler : A Handler to send messages back to the UI Activity
     public BluetoothService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(new RfcommTransport(BluetoothAdapter.getDefaultAdapter()), new HandlerCallback(handler));
+    }
+
+    // handler : Receives the messages of BluetoothState like above
+    public BluetoothService(Transport transport, Handler handler) {
+        this(transport, new HandlerCallback(handler));
+    }
+
+    // Run the service on any transport without Android's Handler, e.g. a
+    // LoopbackTransport in a JVM test. callback is called on the service threads.
+    public BluetoothService(Transport transport, Callback callback) {
+        mTransport = transport;
+        mCallback = callback;
         mState = BluetoothState.STATE_NONE;
-        mHandler = handler;
+        mOutbound.setMetrics(mMetrics);
+        mOutbound.setTracer(mTracer);
     }
 
 
     // Set the current state of the chat connection
     // state : An integer defining the current connection state
     private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + getNameOfState(mState) + " -> " + getNameOfState(state));
+        mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_STATE, mState, state);
         mState = state;
 
         // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(BluetoothState.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
-    }
-
-    private String getNameOfState(int state) {
-        switch (state) {
-            case BluetoothState.STATE_NONE:
-                return "STATE_NONE";
-            case BluetoothState.STATE_LISTEN:
-                return "STATE_LISTEN";
-            case BluetoothState.STATE_CONNECTING:
-                return "STATE_CONNECTING";
-            case BluetoothState.STATE_CONNECTED:
-                return "STATE_CONNECTED";
-            case BluetoothState.STATE_NULL:
-                return "STATE_NULL";
-            default:
-                return "UNKNOWN";
-        }
+        mCallback.onStateChanged(state);
     }
 
     // Return the current connection state. 
@@ -117,8 +149,12 @@ public class BluetoothService {
 
     // Start the ConnectThread to initiate a connection to a remote device
     // device : The BluetoothDevice to connect
-    // secure : Socket Security type - Secure (true) , Insecure (false)
-    public synchronized void connect(BluetoothDevice device) {
+    public void connect(BluetoothDevice device) {
+        connect(device.getAddress());
+    }
+
+    // address : Address of the remote device in the format of the transport
+    public synchronized void connect(String address) {
         // Cancel any thread attempting to make a connection
         if (mState == BluetoothState.STATE_CONNECTING) {
             if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
@@ -128,7 +164,9 @@ public class BluetoothService {
         if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
+        mMetrics.onConnectAttempt();
+        mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECT_START, 0, 0);
+        mConnectThread = new ConnectThread(address);
         mConnectThread.start();
         setState(BluetoothState.STATE_CONNECTING);
     }
@@ -139,6 +177,48 @@ public class BluetoothService {
      * @param device  The BluetoothDevice that has been connected
      */
     public synchronized void connected(BluetoothSocket socket, BluetoothDevice device, final String socketType) {
+        connected(RfcommTransport.wrap(socket), -1);
+    }
+
+    // connectNanos : Duration of the outgoing connect, -1 if accepted
+    private synchronized void connected(Transport.Link link, long connectNanos) {
+        InputStream in = null;
+        OutputStream out = null;
+
+        // Get the input and output streams of the link
+        try {
+            in = link.getInputStream();
+            out = link.getOutputStream();
+        } catch (IOException e) {
+            mTracer.ioError(Tracer.PHASE_OPEN_STREAMS, e);
+        }
+        connected(in, out, link, link.getName(), link.getAddress(), connectNanos);
+    }
+
+    // Feed a recorded session through the receive path as if a device had
+    // connected, e.g. a ReplayInputStream. Data sent meanwhile is discarded.
+    // The session ends like a lost connection once the source is exhausted.
+    public synchronized void replay(final InputStream source, String name) {
+        OutputStream sink = new OutputStream() {
+            public void write(int b) { }
+
+            public void write(byte[] b, int off, int len) { }
+        };
+        Closeable closer = new Closeable() {
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+        connected(source, sink, closer, name, REPLAY_ADDRESS, -1);
+    }
+
+    // Start the ConnectedThread on any pair of streams
+    // closer : Closed to cancel the connection, must unblock pending reads
+    private synchronized void connected(InputStream in, OutputStream out, Closeable closer,
+                                        String name, String address, long connectNanos) {
+        mMetrics.onConnected(connectNanos);
+        mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECTED, connectNanos, 0);
+
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
 
@@ -152,16 +232,11 @@ public class BluetoothService {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mConnectedThread = new ConnectedThread(in, out, closer);
         mConnectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(BluetoothState.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(BluetoothState.DEVICE_NAME, device.getName());
-        bundle.putString(BluetoothState.DEVICE_ADDRESS, device.getAddress());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mCallback.onDeviceConnected(name, address);
 
         setState(BluetoothState.STATE_CONNECTED);
     }
@@ -189,25 +264,202 @@ public class BluetoothService {
     // Write to the ConnectedThread in an unsynchronized manner
     // out : The bytes to write
     public void write(byte[] out) {
+        write(out, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    // Queue bytes on one of the priority lanes of the ConnectedThread
+    // out      : The bytes to write
+    // priority : BluetoothState.PRIORITY_URGENT, PRIORITY_NORMAL or PRIORITY_BULK
+    public void write(byte[] out, int priority) {
+        write(out, 0, out.length, priority);
+    }
+
+    // Queue a slice of a buffer, the bytes are copied before this returns
+    // return : false if not connected or the connection was lost meanwhile
+    public boolean write(byte[] out, int offset, int length, int priority) {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != BluetoothState.STATE_CONNECTED) return;
+            if (mState != BluetoothState.STATE_CONNECTED) return false;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        return r.write(out, offset, length, priority);
+    }
+
+    // Queue the remaining bytes of a heap or direct buffer and advance its position
+    public boolean write(ByteBuffer out, int priority) {
+        // Create temporary object
+        ConnectedThread r;
+        // Synchronize a copy of the ConnectedThread
+        synchronized (this) {
+            if (mState != BluetoothState.STATE_CONNECTED) return false;
+            r = mConnectedThread;
+        }
+        return r.write(out, priority);
+    }
+
+    // Encode text with the charset of this service and queue it. The
+    // encoder and its buffers are reused, they only grow for longer text.
+    public boolean write(CharSequence text, int priority) {
+        synchronized (mEncoderLock) {
+            int length = text.length();
+            if (mCharBuffer.capacity() < length)
+                mCharBuffer = CharBuffer.allocate(Math.max(length, mCharBuffer.capacity() * 2));
+            mCharBuffer.clear();
+            if (text instanceof String) {
+                ((String) text).getChars(0, length, mCharBuffer.array(), 0);
+                mCharBuffer.position(length);
+            } else {
+                for (int i = 0; i < length; i++)
+                    mCharBuffer.put(text.charAt(i));
+            }
+            mCharBuffer.flip();
+
+            int maxBytes = (int) Math.ceil(length * (double) mEncoder.maxBytesPerChar());
+            if (mByteBuffer.capacity() < maxBytes)
+                mByteBuffer = ByteBuffer.allocate(Math.max(maxBytes, mByteBuffer.capacity() * 2));
+            mByteBuffer.clear();
+            mEncoder.reset();
+            mEncoder.encode(mCharBuffer, mByteBuffer, true);
+            mEncoder.flush(mByteBuffer);
+            mByteBuffer.flip();
+            return write(mByteBuffer, priority);
+        }
+    }
+
+    // Charset used by write(CharSequence), the platform default unless set
+    public void setCharset(Charset charset) {
+        synchronized (mEncoderLock) {
+            mEncoder = newEncoder(charset);
+        }
+    }
+
+    public Charset getCharset() {
+        synchronized (mEncoderLock) {
+            return mEncoder.charset();
+        }
+    }
+
+    // Malformed input is replaced like String.getBytes() does
+    private static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // Size of the pieces messages are split into. A lower priority message is
+    // only interrupted between two chunks, so smaller chunks mean shorter
+    // waits for urgent data. Each lane queues at most laneCapacity chunks.
+    public void setChunking(int chunkSize, int laneCapacity) {
+        mOutbound.configure(chunkSize, laneCapacity);
+    }
+
+    // Time messages of the given priority spent queued until fully written
+    public LatencyHistogram getQueueLatency(int priority) {
+        return mOutbound.getQueueLatency(priority);
+    }
+
+    // Traffic, latency and connection counters of this service
+    public ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    // Blocking stream of the data received from now on by the current
+    // connection, null if not connected. It ends with the connection.
+    // Reading must keep up, the receive path waits while its buffer is full.
+    // Bytes carry no arrival time, a ReadObserver or the InboundPublisher
+    // has it for every read.
+    public InputStream getInputStream() {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != BluetoothState.STATE_CONNECTED) return null;
+            r = mConnectedThread;
+        }
+        return r.getInputStream();
+    }
+
+    // Stream writing on the normal lane of the current connection, null if
+    // not connected. Writes fail once this connection has ended.
+    public OutputStream getOutputStream() {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != BluetoothState.STATE_CONNECTED) return null;
+            r = mConnectedThread;
+        }
+        return r.getOutputStream();
+    }
+
+    // Received data with demand driven reads, see InboundPublisher
+    public InboundPublisher getInbound() {
+        return mInbound;
+    }
+
+    // Event trace of this service, dump() it after an incident
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    // Record every byte read and written, null to stop recording
+    public void setWireCapture(WireCapture capture) {
+        mCapture = capture;
+        mOutbound.setWireCapture(capture);
+    }
+
+    // Observe reads on the reader thread, e.g. an InboundRecorder, null to
+    // turn the calls off
+    public void setReadObserver(ReadObserver observer) {
+        setReadObserver(observer, false);
+    }
+
+    // observerOnly : true to hand the reads to the observer alone. The
+    //                reader then reuses one buffer, the Callback and the
+    //                InboundPublisher get nothing, getInputStream() still
+    //                works.
+    public void setReadObserver(ReadObserver observer, boolean observerOnly) {
+        mReadObserver = observer;
+        isObserverOnly = observerOnly;
+    }
+
+    // Observe completed writes, null to turn the calls off
+    public void setWriteObserver(WriteObserver observer) {
+        mOutbound.setWriteObserver(observer);
+    }
+
+    // Rate limiter of the writer thread, see OutboundPacer.configure()
+    public OutboundPacer getPacer() {
+        return mOutbound.getPacer();
+    }
+
+    // Chunks currently waiting in the lane of the given priority
+    public int getQueuedChunks(int priority) {
+        return mOutbound.getQueuedChunks(priority);
     }
 
     // Indicate that the connection attempt failed and notify the UI Activity
-    private void connectionFailed() {
+    // thread : Ignored unless it is still the current attempt, a cancelled
+    //          one must not restart the service under its successor
+    private synchronized void connectionFailed(ConnectThread thread, Exception error, long connectNanos) {
+        if (mConnectThread != thread)
+            return;
+        mConnectThread = null;
+        mTracer.ioError(Tracer.PHASE_CONNECT, error);
+        mMetrics.onConnectFailed(connectNanos);
+        mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECT_FAILED, connectNanos, 0);
         // Start the service over to restart listening mode
         BluetoothService.this.start(BluetoothService.this.isAndroid);
     }
 
     // Indicate that the connection was lost and notify the UI Activity
-    private void connectionLost() {
+    // thread : Ignored unless it is still the current connection, the read
+    //          of a cancelled one fails as well
+    private synchronized void connectionLost(ConnectedThread thread, IOException error, long bytesRead) {
+        if (mConnectedThread != thread)
+            return;
+        mTracer.ioError(Tracer.PHASE_READ, error);
+        mMetrics.onConnectionLost();
+        mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECTION_LOST, bytesRead, 0);
         // Start the service over to restart listening mode
         BluetoothService.this.start(BluetoothService.this.isAndroid);
     }
@@ -217,26 +469,28 @@ public class BluetoothService {
     // (or until cancelled)
     private class AcceptThread extends Thread {
         // The local server socket
-        private BluetoothServerSocket mmServerSocket;
+        private Transport.Acceptor mmServerSocket;
         private String mSocketType;
         boolean isRunning = true;
 
         public AcceptThread(boolean isAndroid) {
-            BluetoothServerSocket tmp = null;
+            Transport.Acceptor tmp = null;
 
             // Create a new listening server socket
             try {
                 if(isAndroid)
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_ANDROID_DEVICE);
+                    tmp = mTransport.listen(NAME_SECURE, BluetoothState.UUID_ANDROID_DEVICE);
                 else
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_OTHER_DEVICE);
-            } catch (IOException e) { }
+                    tmp = mTransport.listen(NAME_SECURE, BluetoothState.UUID_OTHER_DEVICE);
+            } catch (IOException e) {
+                mTracer.ioError(Tracer.PHASE_LISTEN, e);
+            }
             mmServerSocket = tmp;
         }
 
         public void run() {
             setName("AcceptThread" + mSocketType);
-            BluetoothSocket socket = null;
+            Transport.Link socket = null;
 
             // Listen to the server socket if we're not connected
             while (mState != BluetoothState.STATE_CONNECTED && isRunning) {
@@ -247,6 +501,9 @@ public class BluetoothService {
                     	socket = mmServerSocket.accept();
                     }
                 } catch (Exception e) {
+                    // Also the normal way out once cancel() closed the socket
+                    if (isRunning && mmServerSocket != null)
+                        mTracer.ioError(Tracer.PHASE_ACCEPT, e);
                     break;
                 }
 
@@ -257,15 +514,16 @@ public class BluetoothService {
                         case BluetoothState.STATE_LISTEN:
                         case BluetoothState.STATE_CONNECTING:
                             // Situation normal. Start the connected thread.
-                            connected(socket, socket.getRemoteDevice(),
-                                    mSocketType);
+                            connected(socket, -1);
                             break;
                         case BluetoothState.STATE_NONE:
                         case BluetoothState.STATE_CONNECTED:
                             // Either not ready or already connected. Terminate new socket.
                             try {
                                 socket.close();
-                            } catch (IOException e) { }
+                            } catch (IOException e) {
+                                mTracer.ioError(Tracer.PHASE_CLOSE, e);
+                            }
                             break;
                         }
                     }
@@ -279,7 +537,9 @@ public class BluetoothService {
 	                mmServerSocket.close();
 	                mmServerSocket = null;
                 }
-            } catch (IOException e) { }
+            } catch (IOException e) {
+                mTracer.ioError(Tracer.PHASE_CLOSE, e);
+            }
         }
 
         public void kill() {
@@ -292,116 +552,249 @@ public class BluetoothService {
     // with a device. It runs straight through
     // the connection either succeeds or fails
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        private final Transport.Link mmSocket;
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address) {
+            Transport.Link tmp = null;
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a link for a connection with the given device
             try {
                 if(BluetoothService.this.isAndroid)
-                    tmp = device.createRfcommSocketToServiceRecord(UUID_ANDROID_DEVICE);
+                    tmp = mTransport.open(address, BluetoothState.UUID_ANDROID_DEVICE);
                 else
-                    tmp = device.createRfcommSocketToServiceRecord(UUID_OTHER_DEVICE);
-            } catch (IOException e) { }
+                    tmp = mTransport.open(address, BluetoothState.UUID_OTHER_DEVICE);
+            } catch (IOException e) {
+                mTracer.ioError(Tracer.PHASE_CREATE_SOCKET, e);
+            }
             mmSocket = tmp;
         }
 
         public void run() {
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            long startedAt = System.nanoTime();
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the link, the transport cancels discovery first
             try {
+                if (mmSocket == null)
+                    throw new IOException("No socket created");
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
                 mmSocket.connect();
             } catch (Exception e) {
                 // Close the socket
                 try {
-                    mmSocket.close();
-                } catch (Exception e2) { }
-                connectionFailed();
+                    if (mmSocket != null)
+                        mmSocket.close();
+                } catch (Exception e2) {
+                    mTracer.ioError(Tracer.PHASE_CLOSE, e2);
+                }
+                connectionFailed(this, e, System.nanoTime() - startedAt);
                 return;
             }
 
             // Reset the ConnectThread because we're done
             synchronized (BluetoothService.this) {
+                if (mConnectThread != this) {
+                    // Cancelled while connecting
+                    cancel();
+                    return;
+                }
                 mConnectThread = null;
-            }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+                // Start the connected thread
+                connected(mmSocket, System.nanoTime() - startedAt);
+            }
         }
 
         public void cancel() {
             try {
-                mmSocket.close();
-            } catch (Exception e) { }
+                if (mmSocket != null)
+                    mmSocket.close();
+            } catch (Exception e) {
+                mTracer.ioError(Tracer.PHASE_CLOSE, e);
+            }
         }
     }
 
     // This thread runs during a connection with a remote device.
     // It handles all incoming and outgoing transmissions.
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Closeable mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+        private volatile boolean isCancelled = false;
+        // Guards the streams, mmRing is read without it by the reader
+        private final Object mmStreamLock = new Object();
+        private volatile RingInputStream mmRing = null;
+        private OutputStream mmStream = null;
+        private IOException mmEnd = null;
+        private boolean isEnded = false;
+        // Read buffer while a ReadObserver takes the reads alone
+        private final byte[] mmReadBuffer = new byte[2048];
+
+        public ConnectedThread(InputStream in, OutputStream out, Closeable socket) {
             mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) { }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmInStream = in;
+            mmOutStream = out;
+            if (mmOutStream != null)
+                mOutbound.open(mmOutStream);
+            mInbound.attach(this);
         }
 
         public void run() {
+            long total = 0;
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    byte[] buffer = new byte[2048];  // buffer store for the stream
+                    // Hold off reading while a subscriber has no demand
+                    mInbound.awaitDemand(this);
+                    // The Callback owns its buffer, only an observer alone
+                    // lets the reader reuse one
+                    byte[] buffer = isObserverOnly && mReadObserver != null
+                            ? mmReadBuffer : new byte[2048];
                     int bytes; // bytes returned from read()
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(BluetoothState.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+                    long readAt = System.nanoTime();
+                    if (bytes < 0)
+                        throw new EOFException("End of stream");
+                    if (bytes > 0) {
+                        total += bytes;
+                        mMetrics.onRead(bytes);
+                        mTracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_READ, bytes, 0);
+                        WireCapture capture = mCapture;
+                        if (capture != null)
+                            capture.record(WireCapture.DIRECTION_IN, buffer, 0, bytes);
+                        ReadObserver observer = mReadObserver;
+                        if (observer != null)
+                            observer.onChunkRead(buffer, bytes, readAt);
+
+                        if (observer != null && isObserverOnly) {
+                            mMetrics.onNotDispatched();
+                        } else {
+                            // The mode changed during the read
+                            if (buffer == mmReadBuffer)
+                                buffer = Arrays.copyOf(buffer, bytes);
+                            // Send the obtained bytes to the UI Activity
+                            mCallback.onDataRead(buffer, bytes, readAt);
+                            mInbound.onRead(this, buffer, bytes, readAt);
+                        }
+                        RingInputStream ring = mmRing;
+                        if (ring != null)
+                            ring.offer(buffer, 0, bytes);
+                    }
                 } catch (IOException e) {
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothService.this.start(BluetoothService.this.isAndroid);
+                    // Taken before connectionLost(), restarting the service
+                    // cancels this thread as well
+                    boolean cancelled = isCancelled;
+                    mInbound.onEnd(this, e, cancelled);
+                    // A lost link fails the blocking reads, a closed one ends them
+                    endStreams(cancelled || e instanceof EOFException ? null : e);
+                    // Restarts listening mode unless the connection was cancelled
+                    connectionLost(this, e, total);
                     break;
                 }
             }
         }
 
-        // Write to the connected OutStream.
-        // @param buffer  The bytes to write
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        // Queue for the writer thread of the connected OutStream.
+        // @param buffer    The bytes to write
+        // @param priority  The lane to queue them on
+        public boolean write(byte[] buffer, int offset, int length, int priority) {
+            return mOutbound.enqueue(buffer, offset, length, priority);
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothState.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) { }
+        public boolean write(ByteBuffer buffer, int priority) {
+            return mOutbound.enqueue(buffer, priority);
+        }
+
+        // A closed stream is replaced on the next call
+        public InputStream getInputStream() {
+            synchronized (mmStreamLock) {
+                if (mmRing == null || mmRing.isClosed()) {
+                    mmRing = new RingInputStream(RingInputStream.DEFAULT_CAPACITY);
+                    if (isEnded)
+                        mmRing.finish(mmEnd);
+                }
+                return mmRing;
+            }
+        }
+
+        // error : null for an orderly end
+        private void endStreams(IOException error) {
+            synchronized (mmStreamLock) {
+                if (isEnded)
+                    return;
+                isEnded = true;
+                mmEnd = error;
+                if (mmRing != null)
+                    mmRing.finish(error);
+            }
+        }
+
+        public OutputStream getOutputStream() {
+            synchronized (mmStreamLock) {
+                if (mmStream == null)
+                    mmStream = new ConnectedOutputStream(this);
+                return mmStream;
+            }
         }
 
         public void cancel() {
+            isCancelled = true;
+            mInbound.release(this);
+            endStreams(null);
+            mOutbound.close(mmOutStream);
             try {
                 mmSocket.close();
-            } catch (IOException e) { }
+            } catch (IOException e) {
+                mTracer.ioError(Tracer.PHASE_CLOSE, e);
+            }
+        }
+    }
+
+    // Queues on the normal lane of one connection
+    private class ConnectedOutputStream extends OutputStream {
+        private final ConnectedThread mmThread;
+
+        ConnectedOutputStream(ConnectedThread thread) {
+            mmThread = thread;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mmThread.isCancelled || !mmThread.write(b, off, len, BluetoothState.PRIORITY_NORMAL))
+                throw new IOException("Connection closed");
+        }
+    }
+
+    // Posts the events to a Handler as the messages of BluetoothState, for
+    // code built on those. BluetoothSPP implements Callback itself.
+    private static class HandlerCallback implements Callback {
+        private final Handler mmHandler;
+
+        HandlerCallback(Handler handler) {
+            mmHandler = handler;
+        }
+
+        public void onStateChanged(int state) {
+            mmHandler.obtainMessage(BluetoothState.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        }
+
+        public void onDeviceConnected(String name, String address) {
+            Message msg = mmHandler.obtainMessage(BluetoothState.MESSAGE_DEVICE_NAME);
+            Bundle bundle = new Bundle();
+            bundle.putString(BluetoothState.DEVICE_NAME, name);
+            bundle.putString(BluetoothState.DEVICE_ADDRESS, address);
+            msg.setData(bundle);
+            mmHandler.sendMessage(msg);
+        }
+
+        // MESSAGE_READ has no room for the timestamp
+        public void onDataRead(byte[] data, int length, long timestampNanos) {
+            mmHandler.obtainMessage(BluetoothState.MESSAGE_READ, length, -1, data).sendToTarget();
         }
     }
-}
\ No newline at end of file
+}
@@ -15,6 +15,8 @@
 
 package de.wirecard.bluetoothspp.library;
 
+import java.util.UUID;
+
 public class BluetoothState {
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       	// we're doing nothing
@@ -23,10 +25,15 @@ public class BluetoothState {
     public static final int STATE_CONNECTED = 3;  	// now connected to a remote device
     public static final int STATE_NULL = -1;  	 	// now service is null
 
+    // Priorities of outgoing data, lower values are written first
+    public static final int PRIORITY_URGENT = 0;  	// written before anything else
+    public static final int PRIORITY_NORMAL = 1;  	// default of send()
+    public static final int PRIORITY_BULK = 2;    	// large transfers, yields to the others
+
     // Message types sent from the BluetoothChatService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
     public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
+    public static final int MESSAGE_WRITE = 3;      // no longer sent, see OnDataSentListener
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
     
@@ -41,6 +48,12 @@ public class BluetoothState {
     
     public static final boolean DEVICE_ANDROID = true;
     public static final boolean DEVICE_OTHER = false;
+
+    // Service UUIDs used with DEVICE_ANDROID and DEVICE_OTHER
+    public static final UUID UUID_ANDROID_DEVICE =
+            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    public static final UUID UUID_OTHER_DEVICE =          // Serial Port Profile
+            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     
     // Return Intent extra
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
@@ -0,0 +1,397 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import de.wirecard.bluetoothspp.library.BluetoothSPP.OnDataReceivedListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// Runs numbered logical channels over the single connection of a
+// BluetoothSPP. Both ends must use a ChannelMux with the same window size.
+//
+// Every segment on the wire is framed as
+//   [channel : 1][type : 1][length : 2, big endian][payload : length]
+// with type DATA carrying channel payload and type CREDIT carrying a 4 byte
+// big endian number of bytes the receiver has consumed and the sender may
+// send again. A channel never has more than windowSize unconsumed bytes in
+// flight, so a stalled bulk channel cannot starve the others, and a writer
+// thread serves the channels in weighted round robin, one segment at a time.
+//
+// Credit returns and channel 0 go out on the urgent lane of the connection,
+// so they pass data of the other channels already queued there; use channel
+// 0 for control messages. While the link is down nothing is taken from the
+// channels, the writer retries every RETRY_DELAY milliseconds.
+public class ChannelMux implements OnDataReceivedListener {
+    private static final String TAG = "ChannelMux";
+
+    public static final int TYPE_DATA = 0;
+    public static final int TYPE_CREDIT = 1;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_CHANNELS = 256;
+    public static final int CONTROL_CHANNEL = 0;
+
+    static final long RETRY_DELAY = 100;
+
+    private final BluetoothSPP mBluetooth;
+    private final FrameAssembler mAssembler;
+    private final int mWindowSize;
+    private final int mSegmentSize;
+
+    private final Channel[] mChannelById = new Channel[MAX_CHANNELS];
+    private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+    private int mCursor = 0;
+    private int mBurst = 0;
+    private long mUnknownChannelBytes = 0;
+    // Bumped by reset(), a frame built before is not applied afterwards
+    private int mGeneration = 0;
+    // The frame last built by nextFrame(), applied by commitFrame()
+    private Channel mFrameChannel = null;
+    private int mFrameType = 0;
+    private int mFrameSize = 0;
+
+    private WriterThread mWriter = null;
+
+    // bluetooth   : The connection carrying all channels
+    // windowSize  : Bytes a channel may have in flight before it needs credit
+    // segmentSize : Largest payload written in one piece, the scheduling unit
+    public ChannelMux(BluetoothSPP bluetooth, int windowSize, int segmentSize) {
+        if (segmentSize < 1 || segmentSize > 0xFFFF)
+            throw new IllegalArgumentException("segmentSize must be between 1 and 65535");
+        if (windowSize < segmentSize)
+            throw new IllegalArgumentException("windowSize must hold at least one segment");
+        mBluetooth = bluetooth;
+        mWindowSize = windowSize;
+        mSegmentSize = segmentSize;
+        mAssembler = new FrameAssembler(FrameAssembler.lengthPrefixed(2, 2, HEADER_SIZE),
+                HEADER_SIZE + 0xFFFF, new FrameAssembler.OnFrameReceivedListener() {
+                    public void onFrameReceived(byte[] buffer, int offset, int length) {
+                        onFrame(buffer, offset, length);
+                    }
+                });
+    }
+
+    // Open a logical channel
+    // id     : Channel number, 0 to 255, the same on both ends
+    // weight : Segments the channel may write per round robin turn
+    public synchronized Channel openChannel(int id, int weight) {
+        if (id < 0 || id >= MAX_CHANNELS)
+            throw new IllegalArgumentException("Channel id out of range: " + id);
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be at least 1");
+        if (mChannelById[id] != null)
+            throw new IllegalStateException("Channel " + id + " is already open");
+        Channel channel = new Channel(id, weight);
+        mChannelById[id] = channel;
+        mChannels.add(channel);
+        if (mChannels.size() == 1)
+            mBurst = weight;
+        return channel;
+    }
+
+    public synchronized Channel getChannel(int id) {
+        return mChannelById[id];
+    }
+
+    // Start the writer thread
+    public synchronized void start() {
+        if (mWriter == null) {
+            mWriter = new WriterThread();
+            mWriter.start();
+        }
+    }
+
+    // Stop the writer thread, queued data is kept
+    public void stop() {
+        WriterThread writer;
+        synchronized (this) {
+            writer = mWriter;
+            mWriter = null;
+            notifyAll();
+        }
+        if (writer != null)
+            writer.interrupt();
+    }
+
+    // Drop all queued and partially received data and restore the initial
+    // credit of every channel. Call on both ends when a new link is made.
+    public synchronized void reset() {
+        for (Channel channel : mChannels) {
+            channel.mQueue.clear();
+            channel.mQueuedBytes = 0;
+            channel.mOffset = 0;
+            channel.mCredit = mWindowSize;
+            channel.mConsumed = 0;
+            channel.mCreditToReturn = 0;
+        }
+        mGeneration++;
+        mAssembler.reset();
+        notifyAll();
+    }
+
+    // Bytes received for channels nobody opened
+    public synchronized long getUnknownChannelBytes() {
+        return mUnknownChannelBytes;
+    }
+
+    public void onDataReceived(byte[] data, int length) {
+        mAssembler.onDataReceived(data, length);
+    }
+
+    private void onFrame(byte[] buffer, int offset, int length) {
+        int id = buffer[offset] & 0xFF;
+        int type = buffer[offset + 1];
+        int size = length - HEADER_SIZE;
+        Channel channel;
+        synchronized (this) {
+            channel = mChannelById[id];
+            if (channel == null) {
+                mUnknownChannelBytes += size;
+                return;
+            }
+            if (type == TYPE_CREDIT) {
+                if (size >= 4) {
+                    channel.mCredit += readInt(buffer, offset + HEADER_SIZE);
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        if (type != TYPE_DATA)
+            return;
+
+        channel.mReceivedBytes += size;
+        OnDataReceivedListener listener = channel.mListener;
+        if (listener != null) {
+            byte[] data = new byte[size];
+            System.arraycopy(buffer, offset + HEADER_SIZE, data, 0, size);
+            listener.onDataReceived(data, size);
+        }
+
+        // The listener has consumed the data, give the credit back in batches
+        synchronized (this) {
+            channel.mConsumed += size;
+            if (channel.mConsumed >= mWindowSize / 2) {
+                channel.mCreditToReturn += channel.mConsumed;
+                channel.mConsumed = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    // Build the next frame in the given buffer and return its length, 0 if
+    // there is nothing to send. Credit returns go first. The channel only
+    // changes in commitFrame(), once the frame is written. Caller holds the lock.
+    private int nextFrame(byte[] frame) {
+        for (Channel channel : mChannels) {
+            if (channel.mCreditToReturn > 0) {
+                header(frame, channel.mId, TYPE_CREDIT, 4);
+                writeInt(frame, HEADER_SIZE, channel.mCreditToReturn);
+                setFrame(channel, TYPE_CREDIT, channel.mCreditToReturn);
+                return HEADER_SIZE + 4;
+            }
+        }
+
+        Channel channel = nextSendable();
+        if (channel == null)
+            return 0;
+
+        byte[] message = channel.mQueue.peek();
+        int size = Math.min(Math.min(message.length - channel.mOffset, mSegmentSize), channel.mCredit);
+        header(frame, channel.mId, TYPE_DATA, size);
+        System.arraycopy(message, channel.mOffset, frame, HEADER_SIZE, size);
+        setFrame(channel, TYPE_DATA, size);
+        return HEADER_SIZE + size;
+    }
+
+    private void setFrame(Channel channel, int type, int size) {
+        mFrameChannel = channel;
+        mFrameType = type;
+        mFrameSize = size;
+    }
+
+    // The frame of the last nextFrame() was written. Caller holds the lock.
+    private void commitFrame() {
+        Channel channel = mFrameChannel;
+        int size = mFrameSize;
+        mFrameChannel = null;
+        if (mFrameType == TYPE_CREDIT) {
+            // More may have been consumed meanwhile
+            channel.mCreditToReturn -= size;
+            return;
+        }
+        channel.mOffset += size;
+        channel.mCredit -= size;
+        channel.mQueuedBytes -= size;
+        channel.mSentBytes += size;
+        if (channel.mOffset == channel.mQueue.peek().length) {
+            channel.mQueue.poll();
+            channel.mOffset = 0;
+        }
+    }
+
+    // Weighted round robin over the channels that have data and credit
+    private Channel nextSendable() {
+        int count = mChannels.size();
+        for (int i = 0; i <= count && count > 0; i++) {
+            if (mCursor >= count)
+                mCursor = 0;
+            Channel channel = mChannels.get(mCursor);
+            if (mBurst > 0 && channel.isSendable()) {
+                mBurst--;
+                return channel;
+            }
+            mCursor = (mCursor + 1) % count;
+            mBurst = mChannels.get(mCursor).mWeight;
+        }
+        return null;
+    }
+
+    private static void header(byte[] frame, int id, int type, int size) {
+        frame[0] = (byte) id;
+        frame[1] = (byte) type;
+        frame[2] = (byte) (size >> 8);
+        frame[3] = (byte) size;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    // One logical channel. send() only queues, the writer thread of the mux
+    // writes the data once the channel has credit and its turn comes.
+    public class Channel {
+        private final int mId;
+        private final int mWeight;
+        private final ArrayDeque<byte[]> mQueue = new ArrayDeque<byte[]>();
+        private int mOffset = 0;
+        private int mCredit = mWindowSize;
+        private int mConsumed = 0;
+        private int mCreditToReturn = 0;
+        private long mQueuedBytes = 0;
+        private long mSentBytes = 0;
+        private volatile long mReceivedBytes = 0;
+        private volatile OnDataReceivedListener mListener = null;
+
+        private Channel(int id, int weight) {
+            mId = id;
+            mWeight = weight;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public void send(byte[] data) {
+            if (data.length == 0)
+                return;
+            synchronized (ChannelMux.this) {
+                mQueue.add(data);
+                mQueuedBytes += data.length;
+                ChannelMux.this.notifyAll();
+            }
+        }
+
+        public void send(String data) {
+            send(data.getBytes());
+        }
+
+        public void setOnDataReceivedListener(OnDataReceivedListener listener) {
+            mListener = listener;
+        }
+
+        public long getQueuedBytes() {
+            synchronized (ChannelMux.this) {
+                return mQueuedBytes;
+            }
+        }
+
+        public int getCredit() {
+            synchronized (ChannelMux.this) {
+                return mCredit;
+            }
+        }
+
+        public long getSentBytes() {
+            synchronized (ChannelMux.this) {
+                return mSentBytes;
+            }
+        }
+
+        public long getReceivedBytes() {
+            return mReceivedBytes;
+        }
+
+        private boolean isSendable() {
+            return !mQueue.isEmpty() && mCredit > 0;
+        }
+    }
+
+    private class WriterThread extends Thread {
+        // Reused for every frame, send() copies it before returning
+        private final byte[] mmFrame = new byte[HEADER_SIZE + Math.max(4, mSegmentSize)];
+
+        WriterThread() {
+            super(TAG + " writer");
+        }
+
+        public void run() {
+            while (true) {
+                int length;
+                int generation;
+                synchronized (ChannelMux.this) {
+                    while (true) {
+                        if (mWriter != this)
+                            return;
+                        if ((length = nextFrame(mmFrame)) > 0)
+                            break;
+                        try {
+                            ChannelMux.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    generation = mGeneration;
+                }
+                int priority = (mmFrame[0] & 0xFF) == CONTROL_CHANNEL || mmFrame[1] == TYPE_CREDIT
+                        ? BluetoothState.PRIORITY_URGENT : BluetoothState.PRIORITY_NORMAL;
+                boolean isSent = mBluetooth.trySend(mmFrame, 0, length, priority);
+                synchronized (ChannelMux.this) {
+                    if (generation != mGeneration)
+                        continue;
+                    if (isSent) {
+                        commitFrame();
+                        continue;
+                    }
+                    // Not connected, the frame is built again on the next try
+                    try {
+                        ChannelMux.this.wait(RETRY_DELAY);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
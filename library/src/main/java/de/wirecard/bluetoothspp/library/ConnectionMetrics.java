@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters of a BluetoothService. The read and write counters each have a
+// single writer, the reader thread or the writer thread, so they are plain
+// volatile fields updated without atomics or locks. Dispatch is counted by
+// whichever thread delivers the data, and connection events are rare, both
+// use atomics. Read everything with snapshot().
+//
+// Traffic counts and the read, dispatch and write histograms start over
+// with every connection, the connection counters and connect times cover
+// the whole life of the service.
+public class ConnectionMetrics {
+    // Written by the reader thread only
+    private volatile long mBytesIn = 0;
+    private volatile long mReadsIn = 0;
+    private final LatencyHistogram mReadSizes = new LatencyHistogram();
+
+    // Written by the thread delivering reads, the main thread, an executor
+    // or the reader thread itself. Only counted once trackDispatch() is
+    // called, a bare BluetoothService has no dispatcher of its own.
+    private volatile boolean isDispatchTracked = false;
+    private final AtomicLong mDispatched = new AtomicLong();
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+
+    // Written by the writer thread only
+    private volatile long mBytesOut = 0;
+    private volatile long mMessagesOut = 0;
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+    // Rare connection events
+    private final AtomicLong mConnectAttempts = new AtomicLong();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mConnectionsLost = new AtomicLong();
+    private final LatencyHistogram mConnectTime = new LatencyHistogram();
+    private volatile long mConnectedAt = 0;
+
+    // Totals at the last connect. The single writers can't be reset from
+    // the connecting thread, so the counts of a connection are taken
+    // against these.
+    private volatile long mBytesInBase = 0;
+    private volatile long mReadsInBase = 0;
+    private volatile long mBytesOutBase = 0;
+    private volatile long mMessagesOutBase = 0;
+
+    private final OutboundScheduler mOutbound;
+
+    ConnectionMetrics(OutboundScheduler outbound) {
+        mOutbound = outbound;
+    }
+
+    void onRead(int bytes) {
+        mBytesIn += bytes;
+        mReadsIn++;
+        mReadSizes.record(bytes);
+    }
+
+    // The caller reports onDispatched() for every read from now on, which
+    // turns on the pendingDispatch gauge. Call it before the first read.
+    void trackDispatch() {
+        isDispatchTracked = true;
+    }
+
+    // A read reached the data listener after waiting latencyNanos
+    void onDispatched(long latencyNanos) {
+        mDispatched.incrementAndGet();
+        mDispatchLatency.record(latencyNanos);
+    }
+
+    // A read taken by a ReadObserver alone, it won't reach the listeners
+    void onNotDispatched() {
+        mDispatched.incrementAndGet();
+    }
+
+    void onWritten(int bytes, boolean endOfMessage, long durationNanos) {
+        mBytesOut += bytes;
+        if (endOfMessage)
+            mMessagesOut++;
+        mWriteLatency.record(durationNanos);
+    }
+
+    void onConnectAttempt() {
+        mConnectAttempts.incrementAndGet();
+    }
+
+    void onConnectFailed(long durationNanos) {
+        mConnectFailures.incrementAndGet();
+        mConnectTime.record(durationNanos);
+    }
+
+    // durationNanos : Time of the outgoing connect, -1 for accepted connections
+    void onConnected(long durationNanos) {
+        mConnections.incrementAndGet();
+        if (durationNanos >= 0)
+            mConnectTime.record(durationNanos);
+        mBytesInBase = mBytesIn;
+        mReadsInBase = mReadsIn;
+        mBytesOutBase = mBytesOut;
+        mMessagesOutBase = mMessagesOut;
+        mReadSizes.reset();
+        mDispatchLatency.reset();
+        mWriteLatency.reset();
+        mConnectedAt = System.nanoTime();
+    }
+
+    void onConnectionLost() {
+        mConnectionsLost.incrementAndGet();
+        mConnectedAt = 0;
+    }
+
+    // Sizes returned by read(), the histogram values are bytes
+    public LatencyHistogram getReadSizes() {
+        return mReadSizes;
+    }
+
+    // Time from read() returning on the reader thread to the data listener
+    public LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    // Duration of the socket write calls of the writer thread
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    // Duration of outgoing connection attempts, failed ones included
+    public LatencyHistogram getConnectTime() {
+        return mConnectTime;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // A consistent enough copy of all counters, for logging and reporting.
+    // Traffic and latencies are those of the current or last connection.
+    public static class Snapshot {
+        public final long timestampNanos;
+        public final long bytesIn;
+        public final long readsIn;
+        public final long bytesOut;
+        public final long messagesOut;
+        // Reads not yet delivered, -1 without a dispatcher counting them
+        public final long pendingDispatch;
+        public final int queuedUrgent;
+        public final int queuedNormal;
+        public final int queuedBulk;
+        public final long connectAttempts;
+        public final long connectFailures;
+        public final long connections;
+        public final long connectionsLost;
+        public final long connectedMillis;
+        public final long readSizeMean;
+        public final long dispatchLatencyP50;
+        public final long dispatchLatencyP99;
+        public final long writeLatencyP50;
+        public final long writeLatencyP99;
+
+        Snapshot(ConnectionMetrics m) {
+            timestampNanos = System.nanoTime();
+            long totalReadsIn = m.mReadsIn;
+            // A connect between reading a total and its base can't go negative
+            bytesIn = Math.max(0, m.mBytesIn - m.mBytesInBase);
+            readsIn = Math.max(0, totalReadsIn - m.mReadsInBase);
+            bytesOut = Math.max(0, m.mBytesOut - m.mBytesOutBase);
+            messagesOut = Math.max(0, m.mMessagesOut - m.mMessagesOutBase);
+            pendingDispatch = m.isDispatchTracked ? Math.max(0, totalReadsIn - m.mDispatched.get()) : -1;
+            queuedUrgent = m.mOutbound.getQueuedChunks(BluetoothState.PRIORITY_URGENT);
+            queuedNormal = m.mOutbound.getQueuedChunks(BluetoothState.PRIORITY_NORMAL);
+            queuedBulk = m.mOutbound.getQueuedChunks(BluetoothState.PRIORITY_BULK);
+            connectAttempts = m.mConnectAttempts.get();
+            connectFailures = m.mConnectFailures.get();
+            connections = m.mConnections.get();
+            connectionsLost = m.mConnectionsLost.get();
+            long connectedAt = m.mConnectedAt;
+            connectedMillis = connectedAt == 0 ? 0 : (timestampNanos - connectedAt) / 1000000L;
+            readSizeMean = m.mReadSizes.getMean();
+            dispatchLatencyP50 = m.mDispatchLatency.getPercentile(50);
+            dispatchLatencyP99 = m.mDispatchLatency.getPercentile(99);
+            writeLatencyP50 = m.mWriteLatency.getPercentile(50);
+            writeLatencyP99 = m.mWriteLatency.getPercentile(99);
+        }
+
+        public String toString() {
+            return "in=" + bytesIn + "B/" + readsIn + " reads"
+                    + " out=" + bytesOut + "B/" + messagesOut + " msgs"
+                    + (pendingDispatch >= 0 ? " pending=" + pendingDispatch : "")
+                    + " queued=" + queuedUrgent + "/" + queuedNormal + "/" + queuedBulk
+                    + " connects=" + connections + "/" + connectAttempts
+                    + " lost=" + connectionsLost
+                    + " dispatch p50=" + dispatchLatencyP50 / 1000 + "us p99=" + dispatchLatencyP99 / 1000 + "us"
+                    + " write p50=" + writeLatencyP50 / 1000 + "us p99=" + writeLatencyP99 / 1000 + "us";
+        }
+    }
+}
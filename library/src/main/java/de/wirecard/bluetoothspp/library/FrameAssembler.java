@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import de.wirecard.bluetoothspp.library.BluetoothSPP.OnDataReceivedListener;
+import de.wirecard.bluetoothspp.library.BluetoothSPP.OnTimedDataReceivedListener;
+
+// Reassembles the chunks delivered by OnDataReceivedListener into complete
+// frames. Frames are handed out as a slice of an internal buffer which is
+// only valid for the duration of the callback, so no per-frame arrays are
+// allocated. Added as OnTimedDataReceivedListener, getFrameTimestamp()
+// tells when the last byte of the frame arrived. Add it as one kind of
+// listener only, BluetoothSPP drops it from the other list.
+public class FrameAssembler implements OnDataReceivedListener, OnTimedDataReceivedListener {
+    private final FrameDecoder mDecoder;
+    private final OnFrameReceivedListener mListener;
+    private final int mMaxFrameSize;
+
+    private byte[] mBuffer;
+    private int mStart = 0;
+    private int mEnd = 0;
+    private long mDiscarded = 0;
+    private long mTimestamp = 0;
+
+    public interface OnFrameReceivedListener {
+        public void onFrameReceived(byte[] buffer, int offset, int length);
+    }
+
+    // decoder      : Finds the frame boundaries
+    // maxFrameSize : Pending data beyond this size is discarded as garbage
+    // listener     : Receives every complete frame
+    public FrameAssembler(FrameDecoder decoder, int maxFrameSize, OnFrameReceivedListener listener) {
+        if (maxFrameSize <= 0)
+            throw new IllegalArgumentException("maxFrameSize must be positive");
+        mDecoder = decoder;
+        mMaxFrameSize = maxFrameSize;
+        mListener = listener;
+        mBuffer = new byte[Math.min(maxFrameSize, 2048)];
+    }
+
+    public void onDataReceived(byte[] data, int length) {
+        feed(data, 0, length);
+    }
+
+    public void onDataReceived(byte[] data, int length, long timestampNanos) {
+        feed(data, 0, length, timestampNanos);
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        feed(data, offset, length, System.nanoTime());
+    }
+
+    // timestampNanos : System.nanoTime() when the data arrived
+    public synchronized void feed(byte[] data, int offset, int length, long timestampNanos) {
+        mTimestamp = timestampNanos;
+        while (length > 0) {
+            int n = Math.min(length, ensureSpace(length));
+            System.arraycopy(data, offset, mBuffer, mEnd, n);
+            mEnd += n;
+            offset += n;
+            length -= n;
+            drain();
+        }
+    }
+
+    // Drop any partial frame, e.g. after the connection was lost
+    public synchronized void reset() {
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    // Arrival time of the chunk that completed the frame, valid during
+    // onFrameReceived(). A frame spread over several reads gets the last one.
+    public synchronized long getFrameTimestamp() {
+        return mTimestamp;
+    }
+
+    // Number of bytes thrown away because no frame fitted into maxFrameSize
+    public synchronized long getDiscardedBytes() {
+        return mDiscarded;
+    }
+
+    private void drain() {
+        while (mEnd > mStart) {
+            int pending = mEnd - mStart;
+            int frame = mDecoder.getFrameLength(mBuffer, mStart, pending);
+            if (frame > mMaxFrameSize) {
+                // The decoder announced a frame we will never hold, resync
+                mDiscarded++;
+                mStart++;
+                continue;
+            }
+            if (frame <= 0 || frame > pending) {
+                if (pending >= mMaxFrameSize) {
+                    mDiscarded += pending;
+                    mStart = mEnd;
+                }
+                break;
+            }
+            mListener.onFrameReceived(mBuffer, mStart, frame);
+            mStart += frame;
+        }
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    // Make room at the end of the buffer and return how many bytes fit
+    private int ensureSpace(int wanted) {
+        if (mBuffer.length - mEnd >= wanted)
+            return wanted;
+        if (mStart > 0) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+        }
+        int free = mBuffer.length - mEnd;
+        if (free < wanted && mBuffer.length < mMaxFrameSize) {
+            byte[] grown = new byte[Math.min(mMaxFrameSize, Math.max(mBuffer.length * 2, mEnd + wanted))];
+            System.arraycopy(mBuffer, 0, grown, 0, mEnd);
+            mBuffer = grown;
+            free = mBuffer.length - mEnd;
+        }
+        return free;
+    }
+
+    // Frames terminated by a delimiter byte, the delimiter is part of the frame
+    public static FrameDecoder delimited(final byte delimiter) {
+        return new FrameDecoder() {
+            public int getFrameLength(byte[] buffer, int offset, int length) {
+                for (int i = 0; i < length; i++) {
+                    if (buffer[offset + i] == delimiter)
+                        return i + 1;
+                }
+                return 0;
+            }
+        };
+    }
+
+    // Frames carrying a big endian length field
+    // lengthOffset : Position of the length field in the frame
+    // lengthSize   : Size of the length field, 1 to 4 bytes
+    // adjustment   : Added to the field value to get the total frame length
+    public static FrameDecoder lengthPrefixed(final int lengthOffset, final int lengthSize,
+                                              final int adjustment) {
+        if (lengthSize < 1 || lengthSize > 4)
+            throw new IllegalArgumentException("lengthSize must be between 1 and 4");
+        return new FrameDecoder() {
+            public int getFrameLength(byte[] buffer, int offset, int length) {
+                if (length < lengthOffset + lengthSize)
+                    return 0;
+                int value = 0;
+                for (int i = 0; i < lengthSize; i++)
+                    value = (value << 8) | (buffer[offset + lengthOffset + i] & 0xFF);
+                int frame = value + adjustment;
+                // A frame must at least cover its own header
+                return frame < lengthOffset + lengthSize ? lengthOffset + lengthSize : frame;
+            }
+        };
+    }
+}
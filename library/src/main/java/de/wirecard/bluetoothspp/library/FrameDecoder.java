@@ -0,0 +1,25 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+// Finds frame boundaries in the received byte stream
+public interface FrameDecoder {
+    // Return the length of the complete frame starting at buffer[offset],
+    // or 0 if more bytes are needed to tell
+    // buffer : The bytes received so far
+    // offset : Start of the pending data
+    // length : Number of pending bytes
+    public int getFrameLength(byte[] buffer, int offset, int length);
+}
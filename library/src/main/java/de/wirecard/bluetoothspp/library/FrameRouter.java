@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import de.wirecard.bluetoothspp.library.FrameAssembler.OnFrameReceivedListener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Dispatches the complete frames of a FrameAssembler to handlers chosen by
+// the frame header. A frame goes to the first match of
+//   1. the route of its type byte, a lookup in a table of 256 entries
+//   2. the prefix routes, in the order they were added
+//   3. the predicate routes, in the order they were added
+//   4. the default route
+// A route with an executor gets a copy of the frame on that executor, so a
+// slow route doesn't hold up the others. Without one the handler is called
+// on the dispatching thread with the slice of the assembler, valid only for
+// the duration of the call.
+//
+//   FrameRouter router = new FrameRouter(0);
+//   router.route(0x01, statusHandler, null);
+//   router.route(0x02, imageHandler, imageExecutor);
+//   bt.setOnDataReceivedListener(new FrameAssembler(decoder, 4096, router));
+public class FrameRouter implements OnFrameReceivedListener {
+    private final int mTypeOffset;
+    private final AtomicReferenceArray<Route> mTypes = new AtomicReferenceArray<Route>(256);
+    private final CopyOnWriteArrayList<Route> mPrefixes = new CopyOnWriteArrayList<Route>();
+    private final CopyOnWriteArrayList<Route> mMatchers = new CopyOnWriteArrayList<Route>();
+    private volatile Route mDefault = new Route(null, null, null, null);
+
+    // Decides about a frame for a predicate route, called on the dispatching thread
+    public interface FrameMatcher {
+        public boolean matches(byte[] buffer, int offset, int length);
+    }
+
+    // typeOffset : Position of the type byte in the frame
+    public FrameRouter(int typeOffset) {
+        if (typeOffset < 0)
+            throw new IllegalArgumentException("typeOffset must not be negative");
+        mTypeOffset = typeOffset;
+    }
+
+    // Route the frames of one type, replacing an earlier route of that type
+    // type     : Value of the type byte, 0 to 255
+    // executor : Runs the handler, null for the dispatching thread
+    public Route route(int type, OnFrameReceivedListener handler, Executor executor) {
+        if (type < 0 || type > 255)
+            throw new IllegalArgumentException("type must be between 0 and 255");
+        Route route = new Route(handler, executor, null, null);
+        mTypes.set(type, route);
+        return route;
+    }
+
+    // Route the frames starting with the given bytes
+    public Route route(byte[] prefix, OnFrameReceivedListener handler, Executor executor) {
+        Route route = new Route(handler, executor, prefix.clone(), null);
+        mPrefixes.add(route);
+        return route;
+    }
+
+    // Route the frames accepted by a matcher
+    public Route route(FrameMatcher matcher, OnFrameReceivedListener handler, Executor executor) {
+        if (matcher == null)
+            throw new NullPointerException("matcher == null");
+        Route route = new Route(handler, executor, null, matcher);
+        mMatchers.add(route);
+        return route;
+    }
+
+    // Frames no other route took, dropped and only counted without a handler
+    public Route setDefaultRoute(OnFrameReceivedListener handler, Executor executor) {
+        mDefault = new Route(handler, executor, null, null);
+        return mDefault;
+    }
+
+    public Route getDefaultRoute() {
+        return mDefault;
+    }
+
+    public void remove(Route route) {
+        for (int i = 0; i < 256; i++)
+            mTypes.compareAndSet(i, route, null);
+        mPrefixes.remove(route);
+        mMatchers.remove(route);
+    }
+
+    public void onFrameReceived(byte[] buffer, int offset, int length) {
+        Route route = null;
+        if (length > mTypeOffset)
+            route = mTypes.get(buffer[offset + mTypeOffset] & 0xFF);
+        if (route == null) {
+            for (Route prefix : mPrefixes) {
+                if (prefix.startsWith(buffer, offset, length)) {
+                    route = prefix;
+                    break;
+                }
+            }
+        }
+        if (route == null) {
+            for (Route matcher : mMatchers) {
+                if (matcher.mmMatcher.matches(buffer, offset, length)) {
+                    route = matcher;
+                    break;
+                }
+            }
+        }
+        if (route == null)
+            route = mDefault;
+        route.dispatch(buffer, offset, length);
+    }
+
+    public static class Route {
+        private final OnFrameReceivedListener mmHandler;
+        private final Executor mmExecutor;
+        private final byte[] mmPrefix;
+        private final FrameMatcher mmMatcher;
+        private final AtomicLong mmFrames = new AtomicLong();
+        private final AtomicLong mmBytes = new AtomicLong();
+        private final AtomicLong mmRejected = new AtomicLong();
+
+        Route(OnFrameReceivedListener handler, Executor executor, byte[] prefix, FrameMatcher matcher) {
+            mmHandler = handler;
+            mmExecutor = executor;
+            mmPrefix = prefix;
+            mmMatcher = matcher;
+        }
+
+        // Frames and bytes that took this route
+        public long getFrames() {
+            return mmFrames.get();
+        }
+
+        public long getBytes() {
+            return mmBytes.get();
+        }
+
+        // Frames the executor refused, e.g. after it was shut down
+        public long getRejectedFrames() {
+            return mmRejected.get();
+        }
+
+        private boolean startsWith(byte[] buffer, int offset, int length) {
+            if (length < mmPrefix.length)
+                return false;
+            for (int i = 0; i < mmPrefix.length; i++) {
+                if (buffer[offset + i] != mmPrefix[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private void dispatch(byte[] buffer, int offset, int length) {
+            mmFrames.incrementAndGet();
+            mmBytes.addAndGet(length);
+            if (mmHandler == null)
+                return;
+            if (mmExecutor == null) {
+                mmHandler.onFrameReceived(buffer, offset, length);
+                return;
+            }
+            // The slice of the assembler is reused after we return
+            final byte[] frame = new byte[length];
+            System.arraycopy(buffer, offset, frame, 0, length);
+            try {
+                mmExecutor.execute(new Runnable() {
+                    public void run() {
+                        mmHandler.onFrameReceived(frame, 0, frame.length);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mmRejected.incrementAndGet();
+            }
+        }
+    }
+}
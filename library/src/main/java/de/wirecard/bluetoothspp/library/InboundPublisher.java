@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Publishes the received data of a connection to one subscriber with the
+// rules of Reactive Streams. The reader thread only reads from the socket
+// while the subscriber has outstanding demand, so a slow subscriber fills
+// the socket buffer and flow control stops the peer instead of queueing
+// data here. The interfaces mirror org.reactivestreams and java.util.concurrent.Flow
+// one to one, adapting them takes one delegating class.
+//
+// A subscription covers the current connection, or the next one if there
+// is none. It completes when the connection is closed or ends with end of
+// stream, and fails with the IOException when the connection is lost.
+// While subscribed, the gated reads hold up the listeners as well.
+public class InboundPublisher {
+    public interface Subscriber<T> {
+        public void onSubscribe(Subscription subscription);
+        public void onNext(T item);
+        public void onError(Throwable error);
+        public void onComplete();
+    }
+
+    public interface Subscription {
+        public void request(long n);
+        public void cancel();
+    }
+
+    private InboundSubscription mSubscription = null;
+    // Reader of the current connection
+    private Object mLink = null;
+    // System.nanoTime() of the read passed to the running onNext()
+    private long mItemTimestamp = 0;
+
+    // Every item is a read of the connection, the buffers are not reused
+    // and may be kept by the subscriber. getItemTimestamp() tells when it
+    // was read.
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber == null");
+        InboundSubscription subscription = new InboundSubscription(subscriber);
+        boolean isBusy;
+        synchronized (this) {
+            isBusy = mSubscription != null;
+            if (!isBusy) {
+                mSubscription = subscription;
+                subscription.mmLink = mLink;
+            }
+        }
+        if (isBusy) {
+            subscriber.onSubscribe(subscription);
+            subscriber.onError(new IllegalStateException("Already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(subscription);
+        synchronized (this) {
+            // Reads wait until onSubscribe() has returned, so that the
+            // signals don't overlap
+            subscription.isReady = true;
+            notifyAll();
+        }
+    }
+
+    // Arrival time of the current item, System.nanoTime() right after the
+    // read. Valid during onNext() on the thread calling it.
+    public synchronized long getItemTimestamp() {
+        return mItemTimestamp;
+    }
+
+    public synchronized boolean hasSubscriber() {
+        return mSubscription != null;
+    }
+
+    // Called by the reader of a new connection before its first read
+    synchronized void attach(Object link) {
+        mLink = link;
+        if (mSubscription != null && mSubscription.mmLink == null)
+            mSubscription.mmLink = link;
+    }
+
+    // Blocks the reader of a connection until there is demand. Returns at
+    // once without a subscriber or for a link the subscription isn't bound to.
+    void awaitDemand(Object link) throws IOException {
+        synchronized (this) {
+            while (true) {
+                InboundSubscription subscription = mSubscription;
+                if (subscription == null || subscription.mmLink != link || mLink != link)
+                    return;
+                if (subscription.isReady && subscription.mmDemand > 0)
+                    return;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for demand");
+                }
+            }
+        }
+    }
+
+    // Called when a connection is being closed, lets its reader run into
+    // the closed socket instead of waiting for demand
+    synchronized void release(Object link) {
+        if (mLink == link) {
+            mLink = null;
+            notifyAll();
+        }
+    }
+
+    // Called by the reader after every read
+    void onRead(Object link, byte[] data, int length, long timestampNanos) {
+        InboundSubscription subscription;
+        synchronized (this) {
+            subscription = mSubscription;
+            // Reads after release() may find no demand, those go to the
+            // listeners only
+            if (subscription == null || subscription.mmLink != link
+                    || !subscription.isReady || subscription.mmDemand == 0)
+                return;
+            if (subscription.mmDemand != Long.MAX_VALUE)
+                subscription.mmDemand--;
+            mItemTimestamp = timestampNanos;
+        }
+        subscription.mmSubscriber.onNext(ByteBuffer.wrap(data, 0, length));
+    }
+
+    // Called by the reader when its connection has ended
+    // cancelled : The connection was closed on this side
+    void onEnd(Object link, IOException error, boolean cancelled) {
+        InboundSubscription subscription;
+        synchronized (this) {
+            if (mLink == link)
+                mLink = null;
+            subscription = mSubscription;
+            if (subscription == null || subscription.mmLink != link)
+                return;
+            mSubscription = null;
+            notifyAll();
+        }
+        if (cancelled || error instanceof EOFException)
+            subscription.mmSubscriber.onComplete();
+        else
+            subscription.mmSubscriber.onError(error);
+    }
+
+    private class InboundSubscription implements Subscription {
+        private final Subscriber<? super ByteBuffer> mmSubscriber;
+        // Guarded by the publisher
+        private Object mmLink = null;
+        private long mmDemand = 0;
+        private boolean isReady = false;
+
+        InboundSubscription(Subscriber<? super ByteBuffer> subscriber) {
+            mmSubscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                if (detach())
+                    mmSubscriber.onError(new IllegalArgumentException("request(" + n + ")"));
+                return;
+            }
+            synchronized (InboundPublisher.this) {
+                mmDemand += n;
+                if (mmDemand < 0)
+                    mmDemand = Long.MAX_VALUE;
+                InboundPublisher.this.notifyAll();
+            }
+        }
+
+        public void cancel() {
+            detach();
+        }
+
+        // Reads go on without gating once the subscription is gone
+        private boolean detach() {
+            synchronized (InboundPublisher.this) {
+                if (mSubscription != this)
+                    return false;
+                mSubscription = null;
+                InboundPublisher.this.notifyAll();
+                return true;
+            }
+        }
+    }
+}
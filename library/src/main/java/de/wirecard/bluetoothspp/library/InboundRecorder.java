@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// Writes the received bytes to disk right on the reader thread, for
+// logging long sensor streams without passing every chunk through the
+// main thread. The stream goes unchanged into memory-mapped segment files
+// of a fixed size, name-00001.dat, name-00002.dat and so on; the last one
+// is cut to its used length on rotation and close. Next to each segment an
+// index file holds a record every indexInterval with
+//   [stream offset : 8][nanos : 8][wall clock millis : 8]
+// big endian, so that a time can be found in the stream. Recording a chunk
+// allocates nothing. The reader still allocates a buffer per read for the
+// data listeners, unless the recorder is set with
+// setReadObserver(recorder, true) and takes the reads alone.
+//
+// If a segment can't be created, e.g. the disk is full, the bytes are
+// counted as dropped and the next chunk tries again.
+public class InboundRecorder implements BluetoothService.ReadObserver {
+    static final int INDEX_RECORD_SIZE = 24;
+
+    private final File mDirectory;
+    private final String mName;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final long mIndexInterval;
+    private final ByteBuffer mIndexRecord = ByteBuffer.allocateDirect(INDEX_RECORD_SIZE);
+
+    private int mSegment = 0;
+    // Oldest segment that may still be on disk, from this or an earlier run
+    private int mOldestSegment = 1;
+    private RandomAccessFile mFile = null;
+    private MappedByteBuffer mMap = null;
+    private RandomAccessFile mIndex = null;
+    private long mLastIndex = 0;
+    private boolean isClosed = false;
+
+    // Written by the reader thread only
+    private volatile long mRecorded = 0;
+    private volatile long mDropped = 0;
+    private long mRate = 0;
+    private long mStartedAt = 0;
+    private long mWindowStart = 0;
+    private long mWindowBytes = 0;
+
+    // directory     : Created if missing
+    // name          : Prefix of the segment files
+    // segmentSize   : Bytes per segment file
+    // maxSegments   : The oldest segments are deleted beyond this, 0 keeps all
+    // indexInterval : Milliseconds between index records
+    public InboundRecorder(File directory, String name, int segmentSize, int maxSegments,
+                           long indexInterval) {
+        if (segmentSize < 4096 || maxSegments < 0 || indexInterval <= 0)
+            throw new IllegalArgumentException("segmentSize must be at least 4096 bytes, "
+                    + "maxSegments not negative and indexInterval positive");
+        mDirectory = directory;
+        mName = name;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        mIndexInterval = indexInterval * 1000000L;
+        findSegments();
+    }
+
+    public synchronized void onChunkRead(byte[] data, int length, long timestampNanos) {
+        if (isClosed)
+            return;
+        if (mStartedAt == 0) {
+            mStartedAt = timestampNanos;
+            mWindowStart = timestampNanos;
+        }
+        int offset = 0;
+        try {
+            while (offset < length) {
+                if (mMap == null || !mMap.hasRemaining())
+                    nextSegment(timestampNanos);
+                int n = Math.min(length - offset, mMap.remaining());
+                if (timestampNanos - mLastIndex >= mIndexInterval)
+                    writeIndex(mRecorded + offset, timestampNanos);
+                mMap.put(data, offset, n);
+                offset += n;
+            }
+        } catch (IOException e) {
+            mDropped += length - offset;
+            closeSegment();
+        }
+        mRecorded += offset;
+        mWindowBytes += offset;
+        if (timestampNanos - mWindowStart >= 1000000000L) {
+            mRate = mWindowBytes * 1000000000L / (timestampNanos - mWindowStart);
+            mWindowStart = timestampNanos;
+            mWindowBytes = 0;
+        }
+    }
+
+    public long getRecordedBytes() {
+        return mRecorded;
+    }
+
+    // Bytes lost because no segment could be written
+    public long getDroppedBytes() {
+        return mDropped;
+    }
+
+    // Bytes per second over the last full second of recording. Once a
+    // second has passed since that one, the rate so far in the current
+    // window, which falls to 0 when the stream stops.
+    public synchronized long getBytesPerSecond() {
+        long elapsed = System.nanoTime() - mWindowStart;
+        if (mStartedAt != 0 && elapsed >= 1000000000L)
+            return mWindowBytes * 1000000000L / elapsed;
+        return mRate;
+    }
+
+    // Bytes per second since the first chunk
+    public synchronized long getAverageBytesPerSecond() {
+        long elapsed = System.nanoTime() - mStartedAt;
+        return mStartedAt == 0 || elapsed <= 0 ? 0 : mRecorded * 1000000000L / elapsed;
+    }
+
+    // Number of the segment being written, 0 while none is open
+    public synchronized int getSegment() {
+        return mMap != null ? mSegment : 0;
+    }
+
+    public synchronized void close() {
+        isClosed = true;
+        closeSegment();
+    }
+
+    private void nextSegment(long timestampNanos) throws IOException {
+        closeSegment();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Can't create " + mDirectory);
+        int segment = mSegment + 1;
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment, ".dat"), "rw");
+        RandomAccessFile index = null;
+        try {
+            index = new RandomAccessFile(segmentFile(segment, ".idx"), "rw");
+            index.setLength(0);
+            mMap = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } catch (IOException e) {
+            file.close();
+            if (index != null)
+                index.close();
+            throw e;
+        }
+        mSegment = segment;
+        mFile = file;
+        mIndex = index;
+        // Every segment starts with an index record
+        mLastIndex = timestampNanos - mIndexInterval;
+        // An earlier run may have kept more segments, delete all beyond the limit
+        if (mMaxSegments > 0) {
+            for (; mOldestSegment <= mSegment - mMaxSegments; mOldestSegment++) {
+                segmentFile(mOldestSegment, ".dat").delete();
+                segmentFile(mOldestSegment, ".idx").delete();
+            }
+        }
+    }
+
+    private void writeIndex(long streamOffset, long timestampNanos) throws IOException {
+        long wallClock = System.currentTimeMillis() - (System.nanoTime() - timestampNanos) / 1000000L;
+        mIndexRecord.clear();
+        mIndexRecord.putLong(streamOffset);
+        mIndexRecord.putLong(timestampNanos);
+        mIndexRecord.putLong(wallClock);
+        mIndexRecord.flip();
+        FileChannel channel = mIndex.getChannel();
+        while (mIndexRecord.hasRemaining())
+            channel.write(mIndexRecord);
+        mLastIndex = timestampNanos;
+    }
+
+    private void closeSegment() {
+        if (mMap == null)
+            return;
+        try {
+            // The kernel writes the mapping back, no need to wait for it here
+            mFile.setLength(mMap.position());
+            mFile.close();
+            mIndex.close();
+        } catch (IOException e) {
+            // The data is in the mapping, only the length may be off
+        }
+        mMap = null;
+        mFile = null;
+        mIndex = null;
+    }
+
+    private File segmentFile(int segment, String suffix) {
+        return new File(mDirectory, String.format(Locale.US, "%s-%05d%s", mName, segment, suffix));
+    }
+
+    // Continue after the segments of an earlier recording
+    private void findSegments() {
+        String[] names = mDirectory.list();
+        if (names == null)
+            return;
+        int oldest = Integer.MAX_VALUE;
+        for (String name : names) {
+            if (!name.startsWith(mName + "-") || !name.endsWith(".dat"))
+                continue;
+            try {
+                int segment = Integer.parseInt(name.substring(mName.length() + 1, name.length() - 4));
+                mSegment = Math.max(mSegment, segment);
+                oldest = Math.min(oldest, segment);
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        if (oldest != Integer.MAX_VALUE)
+            mOldestSegment = oldest;
+    }
+}
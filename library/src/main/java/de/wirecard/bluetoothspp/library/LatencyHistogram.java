@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free histogram of durations in nanoseconds. Bucket i holds the
+// values in [2^(i-1), 2^i), so recording is a couple of atomic adds and
+// percentiles are accurate to a factor of two.
+public class LatencyHistogram {
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // Record one duration
+    // nanos : The duration in nanoseconds, negative values count as zero
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos))
+            max = mMax.get();
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    // Return the upper bound of the bucket holding the given percentile
+    // percentile : A value between 0 and 100
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * Math.min(100d, Math.max(0d, percentile)) / 100d);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank)
+                return Math.min(getBucketUpperBound(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    // Exclusive upper bound of a bucket in nanoseconds
+    public static long getBucketUpperBound(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            mBuckets.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + getMean() / 1000 + "us"
+                + " p50=" + getPercentile(50) / 1000 + "us"
+                + " p99=" + getPercentile(99) / 1000 + "us"
+                + " max=" + getMax() / 1000 + "us";
+    }
+
+    private static int bucketOf(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// Listeners of one kind, each with an optional Executor. Adding and
+// removing copy the list, so dispatch iterates without locks or copies
+// and listeners may remove themselves while being called.
+class ListenerList<T> implements Iterable<ListenerList.Entry<T>> {
+    static final class Entry<T> {
+        final T listener;
+        // null to call the listener on the dispatching thread
+        final Executor executor;
+
+        Entry(T listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Entry<T>> mEntries = new CopyOnWriteArrayList<Entry<T>>();
+
+    // Adding a listener again replaces its executor
+    synchronized void add(T listener, Executor executor) {
+        if (listener == null)
+            throw new NullPointerException("listener");
+        remove(listener);
+        mEntries.add(new Entry<T>(listener, executor));
+    }
+
+    synchronized boolean remove(T listener) {
+        for (Entry<T> entry : mEntries) {
+            if (entry.listener == listener)
+                return mEntries.remove(entry);
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public Iterator<Entry<T>> iterator() {
+        return mEntries.iterator();
+    }
+}
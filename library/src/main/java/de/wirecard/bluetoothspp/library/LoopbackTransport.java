@@ -0,0 +1,322 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-memory transport. Every LoopbackTransport is one endpoint with its own
+// address, endpoints created by attach() share a network and can connect to
+// each other's listen(). A link is a pair of bounded pipes, so writers block
+// like on a socket once the peer stops reading.
+//   LoopbackTransport a = new LoopbackTransport("A");
+//   LoopbackTransport b = a.attach("B");
+public class LoopbackTransport implements Transport {
+    public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    // Shared by all endpoints of a network, also guards their acceptors
+    private final Map<String, LoopbackTransport> mNetwork;
+    private final Map<UUID, LoopbackAcceptor> mAcceptors = new HashMap<UUID, LoopbackAcceptor>();
+    private final String mAddress;
+    private final int mPipeSize;
+
+    public LoopbackTransport(String address) {
+        this(new HashMap<String, LoopbackTransport>(), address, DEFAULT_PIPE_SIZE);
+    }
+
+    // pipeSize : Bytes buffered per direction before writes block
+    public LoopbackTransport(String address, int pipeSize) {
+        this(new HashMap<String, LoopbackTransport>(), address, pipeSize);
+    }
+
+    private LoopbackTransport(Map<String, LoopbackTransport> network, String address, int pipeSize) {
+        if (pipeSize < 1)
+            throw new IllegalArgumentException("pipeSize must be positive");
+        mNetwork = network;
+        mAddress = address;
+        mPipeSize = pipeSize;
+        synchronized (mNetwork) {
+            if (mNetwork.containsKey(address))
+                throw new IllegalArgumentException("Address already in use: " + address);
+            mNetwork.put(address, this);
+        }
+    }
+
+    // Create another endpoint on the network of this one
+    public LoopbackTransport attach(String address) {
+        return new LoopbackTransport(mNetwork, address, mPipeSize);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public Acceptor listen(String name, UUID service) throws IOException {
+        synchronized (mNetwork) {
+            if (mAcceptors.containsKey(service))
+                throw new IOException("Already listening on " + service);
+            LoopbackAcceptor acceptor = new LoopbackAcceptor(service);
+            mAcceptors.put(service, acceptor);
+            return acceptor;
+        }
+    }
+
+    public Link open(String address, UUID service) {
+        return new OutgoingLink(address, service);
+    }
+
+    private class LoopbackAcceptor implements Acceptor {
+        private final UUID mmService;
+        private final BlockingQueue<Link> mmPending = new LinkedBlockingQueue<Link>();
+        private volatile boolean isClosed = false;
+
+        LoopbackAcceptor(UUID service) {
+            mmService = service;
+        }
+
+        public Link accept() throws IOException {
+            Link link;
+            try {
+                link = mmPending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (link == CLOSED) {
+                // Let later calls fail too
+                mmPending.offer(CLOSED);
+                throw new IOException("Acceptor closed");
+            }
+            return link;
+        }
+
+        public void close() {
+            synchronized (mNetwork) {
+                if (isClosed)
+                    return;
+                isClosed = true;
+                mAcceptors.remove(mmService);
+            }
+            // Refuse links that connected but were never accepted
+            Link pending;
+            while ((pending = mmPending.poll()) != null) {
+                if (pending != CLOSED)
+                    ((PipeLink) pending).close();
+            }
+            mmPending.offer(CLOSED);
+        }
+    }
+
+    private class OutgoingLink implements Link {
+        private final String mmAddress;
+        private final UUID mmService;
+        private PipeLink mmConnected;
+        private boolean isClosed = false;
+
+        OutgoingLink(String address, UUID service) {
+            mmAddress = address;
+            mmService = service;
+        }
+
+        public void connect() throws IOException {
+            // Hand over while holding the network so that the acceptor can't close meanwhile
+            synchronized (mNetwork) {
+                LoopbackTransport peer = mNetwork.get(mmAddress);
+                LoopbackAcceptor acceptor = peer != null ? peer.mAcceptors.get(mmService) : null;
+                if (acceptor == null)
+                    throw new IOException("Connection refused: " + mmAddress);
+
+                Pipe up = new Pipe(mPipeSize);
+                Pipe down = new Pipe(mPipeSize);
+                synchronized (this) {
+                    if (isClosed)
+                        throw new IOException("Link closed");
+                    mmConnected = new PipeLink(mmAddress, down, up);
+                }
+                acceptor.mmPending.offer(new PipeLink(mAddress, up, down));
+            }
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return connected().getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return connected().getOutputStream();
+        }
+
+        public String getName() {
+            return mmAddress;
+        }
+
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        public synchronized void close() {
+            isClosed = true;
+            if (mmConnected != null)
+                mmConnected.close();
+        }
+
+        private synchronized PipeLink connected() throws IOException {
+            if (mmConnected == null)
+                throw new IOException("Not connected");
+            return mmConnected;
+        }
+    }
+
+    private static class PipeLink implements Link {
+        private final String mmAddress;
+        private final Pipe mmIn;
+        private final Pipe mmOut;
+
+        PipeLink(String address, Pipe in, Pipe out) {
+            mmAddress = address;
+            mmIn = in;
+            mmOut = out;
+        }
+
+        public void connect() {
+        }
+
+        public InputStream getInputStream() {
+            return mmIn.mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mmOut.mOutput;
+        }
+
+        public String getName() {
+            return mmAddress;
+        }
+
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        // Both directions end, the peer reads the end of stream
+        public void close() {
+            mmIn.close();
+            mmOut.close();
+        }
+    }
+
+    // Marks a closed acceptor in its queue
+    private static final Link CLOSED = new PipeLink(null, null, null);
+
+    // Bounded byte ring between one writing and one reading thread
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPosition = 0;
+        private int mCount = 0;
+        private boolean isClosed = false;
+
+        final InputStream mInput = new InputStream() {
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return Pipe.this.read(buffer, offset, length);
+            }
+
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                Pipe.this.write(buffer, offset, length);
+            }
+
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            while (mCount == 0) {
+                if (isClosed)
+                    return -1;
+                await();
+            }
+            int n = Math.min(length, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPosition);
+            System.arraycopy(mBuffer, mReadPosition, buffer, offset, first);
+            System.arraycopy(mBuffer, 0, buffer, offset + first, n - first);
+            mReadPosition = (mReadPosition + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mCount == mBuffer.length && !isClosed)
+                    await();
+                if (isClosed)
+                    throw new IOException("Pipe closed");
+                int n = Math.min(length, mBuffer.length - mCount);
+                int writePosition = (mReadPosition + mCount) % mBuffer.length;
+                int first = Math.min(n, mBuffer.length - writePosition);
+                System.arraycopy(buffer, offset, mBuffer, writePosition, first);
+                System.arraycopy(buffer, offset + first, mBuffer, 0, n - first);
+                mCount += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            isClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
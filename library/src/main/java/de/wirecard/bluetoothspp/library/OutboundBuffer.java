@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// Holds the messages sent while the link is down and writes them once it
+// is back, see BluetoothSPP.setOutboundBuffer(). While messages are held,
+// new ones queue behind them so that the order is kept. When a bound is
+// reached the oldest messages are dropped, messages older than maxAge
+// expire unsent. The flush runs on a thread of its own and blocks while
+// the lanes are full, without holding up send(): messages sent meanwhile
+// are held behind the ones still to be flushed.
+public class OutboundBuffer {
+    // Largest write of a flush, consecutive messages of one priority are
+    // joined up to this size
+    static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    private final int mMaxBytes;
+    private final int mMaxMessages;
+    private final long mMaxAgeNanos;
+
+    private final ArrayDeque<Message> mQueue = new ArrayDeque<Message>();
+    private int mBytes = 0;
+    private long mDropped = 0;
+    private long mExpired = 0;
+    private long mFlushed = 0;
+    // A flush is running, its current batch is no longer in mQueue
+    private boolean isFlushing = false;
+
+    private static class Message {
+        final byte[] mmData;
+        final int mmPriority;
+        final long mmQueuedAt;
+
+        Message(byte[] data, int priority, long queuedAt) {
+            mmData = data;
+            mmPriority = priority;
+            mmQueuedAt = queuedAt;
+        }
+    }
+
+    // maxBytes    : Total size of the held messages
+    // maxMessages : Number of held messages
+    // maxAge      : Milliseconds a message may wait, 0 for no limit
+    public OutboundBuffer(int maxBytes, int maxMessages, long maxAge) {
+        if (maxBytes <= 0 || maxMessages <= 0 || maxAge < 0)
+            throw new IllegalArgumentException("maxBytes and maxMessages must be positive, maxAge not negative");
+        mMaxBytes = maxBytes;
+        mMaxMessages = maxMessages;
+        mMaxAgeNanos = maxAge * 1000000L;
+    }
+
+    // Write the message now if connected and nothing is held, else hold it
+    // return : true if written right away
+    synchronized boolean send(BluetoothService service, byte[] data, int offset, int length, int priority) {
+        if (mQueue.isEmpty() && !isFlushing && service.getState() == BluetoothState.STATE_CONNECTED
+                && service.write(data, offset, length, priority))
+            return true;
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        hold(copy, priority);
+        return false;
+    }
+
+    synchronized boolean send(BluetoothService service, ByteBuffer data, int priority) {
+        if (mQueue.isEmpty() && !isFlushing && service.getState() == BluetoothState.STATE_CONNECTED) {
+            int position = data.position();
+            if (service.write(data, priority))
+                return true;
+            data.position(position);
+        }
+        byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        hold(copy, priority);
+        return false;
+    }
+
+    synchronized boolean send(BluetoothService service, CharSequence text, int priority) {
+        if (mQueue.isEmpty() && !isFlushing && service.getState() == BluetoothState.STATE_CONNECTED
+                && service.write(text, priority))
+            return true;
+        hold(text.toString().getBytes(service.getCharset()), priority);
+        return false;
+    }
+
+    // Write the held messages as a burst, consecutive messages of one
+    // priority in one write. Stops if the link goes down again meanwhile,
+    // the rest stays held. Returns at once if a flush is running already.
+    void flush(BluetoothService service) {
+        if (beginFlush())
+            runFlush(service);
+    }
+
+    // Flush on a new thread, the caller doesn't wait for full lanes
+    void startFlush(final BluetoothService service) {
+        if (!beginFlush())
+            return;
+        Thread thread = new Thread("OutboundBuffer flush") {
+            public void run() {
+                runFlush(service);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized boolean beginFlush() {
+        if (isFlushing)
+            return false;
+        isFlushing = true;
+        return true;
+    }
+
+    // The monitor is only held to take a batch out of the queue and to put
+    // it back if the write fails, never during the write
+    private void runFlush(BluetoothService service) {
+        ArrayList<Message> batch = new ArrayList<Message>();
+        try {
+            while (true) {
+                byte[] data;
+                int priority;
+                int size = 0;
+                synchronized (this) {
+                    expire(System.nanoTime());
+                    // Ending the flush together with the last look at the
+                    // queue, so that no message sent meanwhile stays held
+                    if (mQueue.isEmpty() || service.getState() != BluetoothState.STATE_CONNECTED) {
+                        isFlushing = false;
+                        return;
+                    }
+                    priority = mQueue.peekFirst().mmPriority;
+                    while (!mQueue.isEmpty()) {
+                        Message message = mQueue.peekFirst();
+                        if (message.mmPriority != priority
+                                || (!batch.isEmpty() && size + message.mmData.length > MAX_BATCH_SIZE))
+                            break;
+                        batch.add(mQueue.pollFirst());
+                        size += message.mmData.length;
+                    }
+                    mBytes -= size;
+                }
+                if (batch.size() == 1) {
+                    data = batch.get(0).mmData;
+                } else {
+                    data = new byte[size];
+                    int position = 0;
+                    for (Message message : batch) {
+                        System.arraycopy(message.mmData, 0, data, position, message.mmData.length);
+                        position += message.mmData.length;
+                    }
+                }
+                boolean written = service.write(data, 0, size, priority);
+                synchronized (this) {
+                    if (!written) {
+                        restore(batch);
+                        isFlushing = false;
+                        return;
+                    }
+                    mFlushed += batch.size();
+                }
+                batch.clear();
+            }
+        } finally {
+            synchronized (this) {
+                // Only still set if the write threw
+                if (isFlushing && !batch.isEmpty())
+                    restore(batch);
+                isFlushing = false;
+            }
+        }
+    }
+
+    // Put an unwritten batch back in front, the bounds apply again
+    private void restore(ArrayList<Message> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            mQueue.addFirst(batch.get(i));
+            mBytes += batch.get(i).mmData.length;
+        }
+        batch.clear();
+        while (mQueue.size() > mMaxMessages || mBytes > mMaxBytes) {
+            mBytes -= mQueue.pollFirst().mmData.length;
+            mDropped++;
+        }
+    }
+
+    // Drop everything held without counting it
+    public synchronized void clear() {
+        mQueue.clear();
+        mBytes = 0;
+    }
+
+    public synchronized int getHeldMessages() {
+        expire(System.nanoTime());
+        return mQueue.size();
+    }
+
+    public synchronized int getHeldBytes() {
+        expire(System.nanoTime());
+        return mBytes;
+    }
+
+    // Messages given up because a bound was reached
+    public synchronized long getDroppedMessages() {
+        return mDropped;
+    }
+
+    // Messages given up because they waited longer than maxAge
+    public synchronized long getExpiredMessages() {
+        expire(System.nanoTime());
+        return mExpired;
+    }
+
+    // Messages written by flushes
+    public synchronized long getFlushedMessages() {
+        return mFlushed;
+    }
+
+    private void hold(byte[] data, int priority) {
+        long now = System.nanoTime();
+        expire(now);
+        if (data.length > mMaxBytes) {
+            mDropped++;
+            return;
+        }
+        while (mQueue.size() >= mMaxMessages || mBytes + data.length > mMaxBytes) {
+            mBytes -= mQueue.pollFirst().mmData.length;
+            mDropped++;
+        }
+        mQueue.addLast(new Message(data, priority, now));
+        mBytes += data.length;
+    }
+
+    private void expire(long now) {
+        if (mMaxAgeNanos == 0)
+            return;
+        while (!mQueue.isEmpty() && now - mQueue.peekFirst().mmQueuedAt > mMaxAgeNanos) {
+            mBytes -= mQueue.pollFirst().mmData.length;
+            mExpired++;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Durable outbound queue, see BluetoothSPP.setOutboundJournal(). Every
+// message sent is appended to a memory-mapped ring file before it is
+// written to the link, and stays there until the application acknowledges
+// it, e.g. when the printer confirmed the job. After a restart the
+// unacknowledged messages are found again and sent on the next connect.
+// Delivery is at least once: everything not acknowledged is sent again
+// after a reconnect.
+//
+// The mapping survives the death of the process without any sync. Losing
+// power loses what was appended since the last sync, see setSyncPolicy().
+// Records carry a sequence number and a CRC32, so a record torn by a crash
+// ends the journal there instead of being sent broken.
+//
+// File layout, big endian:
+//   header  [magic : 4][version : 4][capacity : 4][reserved : 4]
+//           [tail : 8][tail sequence : 8][0 : 32]
+//   ring    capacity bytes of records, wrapping around
+//   record  [length : 4][priority : 4][sequence : 8][crc32 : 4][payload]
+public class OutboundJournal {
+    static final int FILE_MAGIC = 0x5350504A;   // "SPPJ"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int OFFSET_TAIL = 16;
+    static final int OFFSET_TAIL_SEQUENCE = 24;
+    static final int RECORD_HEADER_SIZE = 20;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMap;
+    // Position and limit of this view are ours, guarded by this
+    private final ByteBuffer mView;
+    private final int mCapacity;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRecordHeader = new byte[RECORD_HEADER_SIZE];
+    private final ByteBuffer mRecordHeaderBuffer = ByteBuffer.wrap(mRecordHeader);
+    private byte[] mScratch = new byte[256];
+
+    // Logical positions, they only grow, the ring position is modulo capacity
+    private long mTail;
+    private long mHead;
+    // Next position to write to the link
+    private long mSent;
+    private long mTailSequence;
+    private long mNextSequence;
+
+    private int mSyncRecords = 1;
+    private long mSyncDelay = 0;
+    private int mUnsynced = 0;
+    private long mLastSync = 0;
+    private long mRejected = 0;
+
+    // Runs startFlush(), its thread ends when idle. Only one flush runs at
+    // a time, it owns mScratch.
+    private final ThreadPoolExecutor mFlusher;
+    private boolean isFlushing = false;
+    // Counts rewind() calls, a write started before one doesn't count
+    private long mRewinds = 0;
+
+    // file     : Opened with its records, or created with the given capacity
+    // capacity : Size of the ring of a new file, an existing file keeps its own
+    public OutboundJournal(File file, int capacity) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        boolean isNew = mFile.length() < HEADER_SIZE;
+        if (!isNew) {
+            if (mFile.readInt() != FILE_MAGIC)
+                throw new IOException("Not an outbound journal: " + file);
+            if (mFile.readInt() != VERSION)
+                throw new IOException("Unsupported journal version");
+            capacity = mFile.readInt();
+            if (mFile.length() < HEADER_SIZE + (long) capacity)
+                throw new IOException("Journal file is truncated");
+        } else if (capacity < 4096) {
+            throw new IllegalArgumentException("capacity must be at least 4096 bytes");
+        }
+        mCapacity = capacity;
+        mChannel = mFile.getChannel();
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        mView = mMap.duplicate();
+        if (isNew) {
+            mMap.putInt(0, FILE_MAGIC);
+            mMap.putInt(4, VERSION);
+            mMap.putInt(8, capacity);
+            mMap.putLong(OFFSET_TAIL, 0);
+            mMap.putLong(OFFSET_TAIL_SEQUENCE, 0);
+            mMap.force();
+        }
+        recover();
+        mLastSync = System.nanoTime();
+        mFlusher = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OutboundJournal flush");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mFlusher.allowCoreThreadTimeOut(true);
+    }
+
+    // Find the head by walking the intact records from the tail
+    private void recover() {
+        mTail = mMap.getLong(OFFSET_TAIL);
+        mTailSequence = mMap.getLong(OFFSET_TAIL_SEQUENCE);
+        long tail = mTail;
+        long position = mTail;
+        long skipped = -1;
+        long sequence = -1;
+        while (true) {
+            int size = validRecordSize(position);
+            if (size < 0)
+                break;
+            long recordSequence = mRecordHeaderBuffer.getLong(8);
+            if (sequence < 0 && recordSequence < mTailSequence
+                    && (skipped < 0 || recordSequence == skipped + 1)) {
+                // Acknowledged, the crash came before the tail was moved.
+                // Only a run ending right before the tail sequence counts,
+                // anything else is left over from an earlier lap.
+                skipped = recordSequence;
+                position += size;
+                if (skipped == mTailSequence - 1)
+                    tail = position;
+                continue;
+            }
+            if (sequence < 0 ? recordSequence != mTailSequence || position != tail
+                    : recordSequence != sequence + 1)
+                break;
+            sequence = recordSequence;
+            position += size;
+        }
+        mTail = tail;
+        mHead = sequence >= 0 ? position : tail;
+        mSent = mTail;
+        mNextSequence = sequence >= 0 ? sequence + 1 : mTailSequence;
+    }
+
+    // Flush the mapping to the disk after this many appends, or on the
+    // first append once delayMillis have passed since the last sync, 0 for
+    // no time limit. (1, 0), the default, syncs every record.
+    public synchronized void setSyncPolicy(int records, long delayMillis) {
+        if (records < 1 || delayMillis < 0)
+            throw new IllegalArgumentException("records must be positive, delayMillis not negative");
+        mSyncRecords = records;
+        mSyncDelay = delayMillis * 1000000L;
+    }
+
+    // Append a message, sent on the next flush
+    // return : Its sequence number, -1 if the journal has no room
+    public synchronized long append(byte[] data, int offset, int length, int priority) {
+        int size = RECORD_HEADER_SIZE + length;
+        if (size > mCapacity - (mHead - mTail)) {
+            mRejected++;
+            return -1;
+        }
+        long sequence = mNextSequence++;
+        mRecordHeaderBuffer.putInt(0, length);
+        mRecordHeaderBuffer.putInt(4, priority);
+        mRecordHeaderBuffer.putLong(8, sequence);
+        mCrc.reset();
+        mCrc.update(mRecordHeader, 0, 16);
+        mCrc.update(data, offset, length);
+        mRecordHeaderBuffer.putInt(16, (int) mCrc.getValue());
+        put(mHead + RECORD_HEADER_SIZE, data, offset, length);
+        put(mHead, mRecordHeader, 0, RECORD_HEADER_SIZE);
+        mHead += size;
+
+        mUnsynced++;
+        long now = System.nanoTime();
+        if (mUnsynced >= mSyncRecords || (mSyncDelay > 0 && now - mLastSync >= mSyncDelay))
+            sync();
+        return sequence;
+    }
+
+    // Force the appended records to the disk
+    public synchronized void sync() {
+        mMap.force();
+        mUnsynced = 0;
+        mLastSync = System.nanoTime();
+    }
+
+    // The peer has the messages up to and including this sequence number,
+    // their space is reused
+    public synchronized void acknowledge(long sequence) {
+        long position = mTail;
+        long tailSequence = mTailSequence;
+        while (position < mHead && tailSequence <= sequence) {
+            position += RECORD_HEADER_SIZE + getInt(position);
+            tailSequence++;
+        }
+        if (position == mTail)
+            return;
+        // Sequence first, recover() skips records below it if we die between
+        mMap.putLong(OFFSET_TAIL_SEQUENCE, tailSequence);
+        mMap.putLong(OFFSET_TAIL, position);
+        mTail = position;
+        mTailSequence = tailSequence;
+        if (mSent < mTail)
+            mSent = mTail;
+    }
+
+    // Send everything not acknowledged again from the start, called when
+    // the link came back
+    synchronized void rewind() {
+        mSent = mTail;
+        mRewinds++;
+    }
+
+    // Write the messages not yet written to the link. Stops if the link
+    // goes down meanwhile, they are written on the next flush. Returns at
+    // once if a flush is running already, it writes them as well.
+    void flush(BluetoothService service) {
+        synchronized (this) {
+            if (isFlushing)
+                return;
+            isFlushing = true;
+        }
+        runFlush(service);
+    }
+
+    // Flush on the flush thread, the caller doesn't wait for full lanes
+    synchronized void startFlush(final BluetoothService service) {
+        if (isFlushing || mSent >= mHead)
+            return;
+        isFlushing = true;
+        try {
+            mFlusher.execute(new Runnable() {
+                public void run() {
+                    runFlush(service);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+            isFlushing = false;
+        }
+    }
+
+    // The monitor is only held to copy a record out and to move on once it
+    // is written, never during the write, so append() doesn't wait for it
+    private void runFlush(BluetoothService service) {
+        boolean isDone = false;
+        try {
+            while (true) {
+                long position;
+                int length;
+                int priority;
+                long rewinds;
+                synchronized (this) {
+                    // Ending the flush together with the last look, so that
+                    // a message appended meanwhile is not left behind
+                    if (mSent >= mHead) {
+                        isFlushing = false;
+                        isDone = true;
+                        return;
+                    }
+                    position = mSent;
+                    length = getInt(position);
+                    priority = getInt(position + 4);
+                    if (mScratch.length < length)
+                        mScratch = new byte[Math.max(length, mScratch.length * 2)];
+                    get(position + RECORD_HEADER_SIZE, mScratch, length);
+                    rewinds = mRewinds;
+                }
+                boolean isWritten = service.write(mScratch, 0, length, priority);
+                synchronized (this) {
+                    if (!isWritten) {
+                        isFlushing = false;
+                        isDone = true;
+                        return;
+                    }
+                    // An acknowledge or rewind meanwhile has moved mSent already
+                    if (mRewinds == rewinds && mSent == position)
+                        mSent = position + RECORD_HEADER_SIZE + length;
+                }
+            }
+        } finally {
+            // The write threw, let the next flush take over
+            if (!isDone) {
+                synchronized (this) {
+                    isFlushing = false;
+                }
+            }
+        }
+    }
+
+    // Sequence number of the last appended message, -1 if none yet
+    public synchronized long getLastSequence() {
+        return mNextSequence - 1;
+    }
+
+    // Messages appended and not yet acknowledged
+    public synchronized long getPendingMessages() {
+        return mNextSequence - mTailSequence;
+    }
+
+    public synchronized long getFreeBytes() {
+        return mCapacity - (mHead - mTail);
+    }
+
+    // Messages not appended because the journal was full
+    public synchronized long getRejectedMessages() {
+        return mRejected;
+    }
+
+    public synchronized void close() throws IOException {
+        mFlusher.shutdown();
+        sync();
+        mChannel.close();
+        mFile.close();
+    }
+
+    // Size of the record at position if it is intact, else -1. Leaves its
+    // header in mRecordHeader.
+    private int validRecordSize(long position) {
+        if (position + RECORD_HEADER_SIZE > mTail + mCapacity)
+            return -1;
+        get(position, mRecordHeader, RECORD_HEADER_SIZE);
+        int length = mRecordHeaderBuffer.getInt(0);
+        if (length < 0 || position + RECORD_HEADER_SIZE + length > mTail + mCapacity)
+            return -1;
+        if (mScratch.length < length)
+            mScratch = new byte[length];
+        get(position + RECORD_HEADER_SIZE, mScratch, length);
+        mCrc.reset();
+        mCrc.update(mRecordHeader, 0, 16);
+        mCrc.update(mScratch, 0, length);
+        if ((int) mCrc.getValue() != mRecordHeaderBuffer.getInt(16))
+            return -1;
+        return RECORD_HEADER_SIZE + length;
+    }
+
+    private void put(long position, byte[] data, int offset, int length) {
+        int at = (int) (position % mCapacity);
+        int first = Math.min(length, mCapacity - at);
+        ByteBuffer view = mView;
+        view.position(HEADER_SIZE + at);
+        view.put(data, offset, first);
+        if (first < length) {
+            view.position(HEADER_SIZE);
+            view.put(data, offset + first, length - first);
+        }
+    }
+
+    private void get(long position, byte[] buffer, int length) {
+        int at = (int) (position % mCapacity);
+        int first = Math.min(length, mCapacity - at);
+        ByteBuffer view = mView;
+        view.position(HEADER_SIZE + at);
+        view.get(buffer, 0, first);
+        if (first < length) {
+            view.position(HEADER_SIZE);
+            view.get(buffer, first, length - first);
+        }
+    }
+
+    private int getInt(long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (mMap.get(HEADER_SIZE + (int) ((position + i) % mCapacity)) & 0xFF);
+        return value;
+    }
+}
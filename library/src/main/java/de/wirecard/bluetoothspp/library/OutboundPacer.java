@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+// Token bucket limiting the rate of the writer thread, for serial modules
+// whose UART buffer overflows at full RFCOMM speed. The bucket fills with
+// bytesPerSecond tokens up to burstSize, every written byte takes a token
+// and the writer sleeps while the bucket is empty. Callers of send() are
+// never slowed down directly, they only block once their lane is full.
+public class OutboundPacer {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private int mBytesPerSecond = 0;
+    private int mBurstSize = 0;
+    private long mFrameGapNanos = 0;
+
+    private double mTokens = 0;
+    private long mLastRefill = 0;
+    private long mLastMessageEnd = 0;
+
+    private long mStartedAt = 0;
+    private long mBytes = 0;
+    private long mThrottledNanos = 0;
+
+    // bytesPerSecond : Sustained rate, 0 or less turns pacing off
+    // burstSize      : Bytes that may be written back to back
+    // frameGapMillis : Pause between the end of a message and the next one
+    public synchronized void configure(int bytesPerSecond, int burstSize, int frameGapMillis) {
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mBurstSize = Math.max(1, burstSize);
+        mFrameGapNanos = Math.max(0, frameGapMillis) * 1000000L;
+        mTokens = mBurstSize;
+        mLastRefill = System.nanoTime();
+        resetStatistics();
+    }
+
+    public synchronized boolean isEnabled() {
+        return mBytesPerSecond > 0 || mFrameGapNanos > 0;
+    }
+
+    // Largest piece the writer should hand to the socket at once
+    synchronized int getMaxWrite(int length) {
+        return mBytesPerSecond > 0 ? Math.min(length, mBurstSize) : length;
+    }
+
+    // Block the writer thread until length bytes may be written
+    // startOfMessage : true if the bytes begin a new message
+    void acquire(int length, boolean startOfMessage) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (mStartedAt == 0)
+                mStartedAt = now;
+            wait = 0;
+            if (startOfMessage && mFrameGapNanos > 0 && mLastMessageEnd != 0)
+                wait = Math.max(0, mLastMessageEnd + mFrameGapNanos - now);
+            if (mBytesPerSecond > 0) {
+                mTokens = Math.min(mBurstSize,
+                        mTokens + (now - mLastRefill) * (double) mBytesPerSecond / NANOS_PER_SECOND);
+                mLastRefill = now;
+                // Going into debt keeps the long term rate exact
+                mTokens -= length;
+                if (mTokens < 0)
+                    wait = Math.max(wait, (long) (-mTokens * NANOS_PER_SECOND / mBytesPerSecond));
+            }
+            mThrottledNanos += wait;
+            mBytes += length;
+        }
+        if (wait > 0)
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+    }
+
+    // Called by the writer after the last byte of a message
+    synchronized void onMessageWritten() {
+        mLastMessageEnd = System.nanoTime();
+    }
+
+    // Bytes per second written since pacing was configured
+    public synchronized long getAchievedRate() {
+        long elapsed = System.nanoTime() - mStartedAt;
+        if (mStartedAt == 0 || elapsed <= 0)
+            return 0;
+        return (long) (mBytes * (double) NANOS_PER_SECOND / elapsed);
+    }
+
+    // Total time the writer thread slept because of pacing
+    public synchronized long getThrottledMillis() {
+        return mThrottledNanos / 1000000L;
+    }
+
+    public synchronized long getPacedBytes() {
+        return mBytes;
+    }
+
+    public synchronized void resetStatistics() {
+        mStartedAt = 0;
+        mBytes = 0;
+        mThrottledNanos = 0;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Outbound path of a connection. Messages are copied into pooled chunks and
+// queued on one of the priority lanes, a writer thread writes the chunks to
+// the socket always taking the head of the most urgent non-empty lane.
+// A message is therefore only interrupted at a chunk boundary and only by a
+// message of a higher priority, and an urgent message waits for at most one
+// chunk of bulk data. Every lane holds at most laneCapacity chunks, senders
+// block when their lane is full, which bounds the memory of the queue.
+class OutboundScheduler {
+    static final int LANES = 3;
+
+    static final int DEFAULT_CHUNK_SIZE = 1024;
+    static final int DEFAULT_LANE_CAPACITY = 64;
+
+    private final Object mLock = new Object();
+    private final Object[] mProducerLocks = new Object[LANES];
+    private final ArrayDeque<Chunk>[] mLanes;
+    private final int[] mQueued = new int[LANES];
+    private final LatencyHistogram[] mLatency = new LatencyHistogram[LANES];
+    private final ArrayDeque<Chunk> mFree = new ArrayDeque<Chunk>();
+    private final OutboundPacer mPacer = new OutboundPacer();
+    private volatile BluetoothService.WriteObserver mObserver = null;
+    private ConnectionMetrics mMetrics = null;
+    private Tracer mTracer = null;
+    private volatile WireCapture mCapture = null;
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mLaneCapacity = DEFAULT_LANE_CAPACITY;
+
+    private OutputStream mOut = null;
+    private WriterThread mWriter = null;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    OutboundScheduler() {
+        mLanes = new ArrayDeque[LANES];
+        for (int i = 0; i < LANES; i++) {
+            mProducerLocks[i] = new Object();
+            mLanes[i] = new ArrayDeque<Chunk>();
+            mLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    // Split size for new messages and the number of chunks a lane may queue
+    void configure(int chunkSize, int laneCapacity) {
+        if (chunkSize < 1 || laneCapacity < 1)
+            throw new IllegalArgumentException("chunkSize and laneCapacity must be positive");
+        synchronized (mLock) {
+            mChunkSize = chunkSize;
+            mLaneCapacity = laneCapacity;
+            mFree.clear();
+            mLock.notifyAll();
+        }
+    }
+
+    // Start writing to the output stream of a new connection
+    void open(OutputStream out) {
+        synchronized (mLock) {
+            stopLocked();
+            mOut = out;
+            mWriter = new WriterThread(out);
+            mWriter.start();
+        }
+    }
+
+    // Stop writing to the given stream and drop everything still queued.
+    // Does nothing if another stream was opened in the meantime.
+    void close(OutputStream out) {
+        synchronized (mLock) {
+            if (mOut == out)
+                stopLocked();
+        }
+    }
+
+    // Queue a message, blocking while its lane is full. An interrupt while
+    // blocked withdraws the message if the writer hasn't started on it yet,
+    // else the message is finished first. The interrupt status is kept.
+    // return : false if the connection is closed before all data was queued,
+    //          or the message was withdrawn
+    boolean enqueue(byte[] data, int offset, int length, int priority) {
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array length " + data.length);
+        return enqueue(data, null, offset, length, priority);
+    }
+
+    // Queue the remaining bytes of a heap or direct buffer and advance its position
+    boolean enqueue(ByteBuffer data, int priority) {
+        return enqueue(null, data, 0, data.remaining(), priority);
+    }
+
+    private boolean enqueue(byte[] array, ByteBuffer buffer, int offset, int length, int priority) {
+        if (priority < 0 || priority >= LANES)
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        long now = System.nanoTime();
+        // Chunks of one message stay together within their lane
+        synchronized (mProducerLocks[priority]) {
+            synchronized (mLock) {
+                WriterThread writer = mWriter;
+                if (writer == null)
+                    return false;
+                boolean first = true;
+                boolean isInterrupted = false;
+                int queued = 0;
+                while (length > 0) {
+                    while (mQueued[priority] >= mLaneCapacity && mWriter == writer) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            isInterrupted = true;
+                            if (withdrawLocked(priority, queued)) {
+                                Thread.currentThread().interrupt();
+                                return false;
+                            }
+                        }
+                    }
+                    if (mWriter != writer) {
+                        if (isInterrupted)
+                            Thread.currentThread().interrupt();
+                        return false;
+                    }
+
+                    Chunk chunk = obtainLocked();
+                    int n = Math.min(length, chunk.mData.length);
+                    if (buffer != null)
+                        buffer.get(chunk.mData, 0, n);
+                    else
+                        System.arraycopy(array, offset, chunk.mData, 0, n);
+                    chunk.mLength = n;
+                    chunk.mLane = priority;
+                    chunk.mEnqueuedAt = now;
+                    chunk.mFirst = first;
+                    chunk.mLast = n == length;
+                    first = false;
+                    mLanes[priority].add(chunk);
+                    mQueued[priority]++;
+                    queued++;
+                    mLock.notifyAll();
+                    offset += n;
+                    length -= n;
+                }
+                if (isInterrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    // Take back the last count chunks of a lane, a message being queued,
+    // unless the writer already took its first chunk. The producer lock of
+    // the lane is held, so they are the chunks at its tail.
+    // return : true if the message is gone from the lane
+    private boolean withdrawLocked(int priority, int count) {
+        ArrayDeque<Chunk> lane = mLanes[priority];
+        if (lane.size() < count)
+            return false;
+        for (int i = 0; i < count; i++)
+            recycleLocked(lane.pollLast());
+        mQueued[priority] -= count;
+        mLock.notifyAll();
+        return true;
+    }
+
+    // Time from queueing a message until its last chunk was written
+    LatencyHistogram getQueueLatency(int priority) {
+        return mLatency[priority];
+    }
+
+    void setMetrics(ConnectionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    void setTracer(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    void setWireCapture(WireCapture capture) {
+        mCapture = capture;
+    }
+
+    // Called on the writer thread after every chunk, null for no calls
+    void setWriteObserver(BluetoothService.WriteObserver observer) {
+        mObserver = observer;
+    }
+
+    OutboundPacer getPacer() {
+        return mPacer;
+    }
+
+    int getQueuedChunks(int priority) {
+        synchronized (mLock) {
+            return mQueued[priority];
+        }
+    }
+
+    private void stopLocked() {
+        if (mWriter != null) {
+            mWriter.interrupt();
+            mWriter = null;
+        }
+        mOut = null;
+        for (int i = 0; i < LANES; i++) {
+            Chunk chunk;
+            while ((chunk = mLanes[i].poll()) != null)
+                recycleLocked(chunk);
+            mQueued[i] = 0;
+        }
+        mLock.notifyAll();
+    }
+
+    private Chunk obtainLocked() {
+        Chunk chunk = mFree.poll();
+        return chunk != null ? chunk : new Chunk(mChunkSize);
+    }
+
+    private void recycleLocked(Chunk chunk) {
+        if (chunk.mData.length == mChunkSize && mFree.size() < LANES * mLaneCapacity)
+            mFree.add(chunk);
+    }
+
+    private Chunk pollLocked() {
+        for (int i = 0; i < LANES; i++) {
+            Chunk chunk = mLanes[i].poll();
+            if (chunk != null) {
+                mQueued[i]--;
+                mLock.notifyAll();
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    private static final class Chunk {
+        final byte[] mData;
+        int mLength;
+        int mLane;
+        long mEnqueuedAt;
+        boolean mFirst;
+        boolean mLast;
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    private class WriterThread extends Thread {
+        private final OutputStream mmOutStream;
+
+        WriterThread(OutputStream out) {
+            super("Bluetooth writer");
+            mmOutStream = out;
+        }
+
+        public void run() {
+            while (true) {
+                Chunk chunk = null;
+                synchronized (mLock) {
+                    while (mWriter == this && (chunk = pollLocked()) == null) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mWriter != this)
+                        return;
+                }
+
+                long writeNanos;
+                try {
+                    writeNanos = write(chunk);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (mTracer != null)
+                        mTracer.ioError(Tracer.PHASE_WRITE, e);
+                    // The reader notices the lost connection, stop accepting data
+                    synchronized (mLock) {
+                        recycleLocked(chunk);
+                        if (mWriter == this)
+                            stopLocked();
+                    }
+                    return;
+                }
+
+                WireCapture capture = mCapture;
+                if (capture != null)
+                    capture.record(WireCapture.DIRECTION_OUT, chunk.mData, 0, chunk.mLength);
+
+                long now = System.nanoTime();
+                if (chunk.mLast)
+                    mLatency[chunk.mLane].record(now - chunk.mEnqueuedAt);
+                if (mMetrics != null)
+                    mMetrics.onWritten(chunk.mLength, chunk.mLast, writeNanos);
+                if (mTracer != null)
+                    mTracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_WRITE, chunk.mLength, writeNanos);
+                BluetoothService.WriteObserver observer = mObserver;
+                if (observer != null)
+                    observer.onChunkWritten(chunk.mLength, chunk.mLast, now);
+                synchronized (mLock) {
+                    recycleLocked(chunk);
+                }
+            }
+        }
+
+        // Write a chunk and return the time spent in the socket, pacing excluded
+        private long write(Chunk chunk) throws IOException, InterruptedException {
+            long start;
+            if (!mPacer.isEnabled()) {
+                start = System.nanoTime();
+                mmOutStream.write(chunk.mData, 0, chunk.mLength);
+                return System.nanoTime() - start;
+            }
+            // Hand the chunk to the socket no faster than the pacer allows
+            long spent = 0;
+            int offset = 0;
+            while (offset < chunk.mLength) {
+                int n = mPacer.getMaxWrite(chunk.mLength - offset);
+                mPacer.acquire(n, chunk.mFirst && offset == 0);
+                start = System.nanoTime();
+                mmOutStream.write(chunk.mData, offset, n);
+                spent += System.nanoTime() - start;
+                offset += n;
+            }
+            if (chunk.mLast)
+                mPacer.onMessageWritten();
+            return spent;
+        }
+    }
+}
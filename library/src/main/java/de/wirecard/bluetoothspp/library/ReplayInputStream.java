@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Plays back the received side of a WireCapture as an InputStream. Every
+// read() returns at most one recorded read, so the chunking seen by the
+// receive path matches the live session. Hand it to BluetoothSPP.replay()
+// to drive the normal dispatch and listener path without a device.
+public class ReplayInputStream extends InputStream {
+    // Play back as fast as the consumer reads
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    // Keep the original gaps between reads
+    public static final double ORIGINAL_TIMING = 1;
+
+    private final List<byte[]> mChunks;
+    private final long[] mOffsets;
+    private final double mSpeed;
+
+    private int mIndex = 0;
+    private int mPosition = 0;
+    private long mStartedAt = 0;
+    private volatile boolean isClosed = false;
+
+    // capture : A file written by WireCapture
+    // speed   : ORIGINAL_TIMING, AS_FAST_AS_POSSIBLE or any factor, 2 plays twice as fast
+    public ReplayInputStream(File capture, double speed) throws IOException {
+        this(new WireCaptureReader(capture).readAll(), speed);
+    }
+
+    public ReplayInputStream(List<WireCaptureReader.Record> records, double speed) {
+        mSpeed = speed;
+        mChunks = new ArrayList<byte[]>();
+        List<Long> times = new ArrayList<Long>();
+        for (WireCaptureReader.Record record : records) {
+            if (record.direction == WireCapture.DIRECTION_IN && record.data.length > 0) {
+                mChunks.add(record.data);
+                times.add(record.timestampNanos);
+            }
+        }
+        mOffsets = new long[times.size()];
+        for (int i = 0; i < mOffsets.length; i++)
+            mOffsets[i] = times.get(i) - times.get(0);
+    }
+
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (isClosed)
+            throw new IOException("Stream closed");
+        if (length == 0)
+            return 0;
+        if (mIndex >= mChunks.size())
+            return -1;
+
+        if (mPosition == 0)
+            waitForChunk(mIndex);
+        byte[] chunk = mChunks.get(mIndex);
+        int n = Math.min(length, chunk.length - mPosition);
+        System.arraycopy(chunk, mPosition, buffer, offset, n);
+        mPosition += n;
+        if (mPosition == chunk.length) {
+            mIndex++;
+            mPosition = 0;
+        }
+        return n;
+    }
+
+    public int available() {
+        return mIndex < mChunks.size() ? mChunks.get(mIndex).length - mPosition : 0;
+    }
+
+    public void close() {
+        isClosed = true;
+    }
+
+    // Number of recorded reads still to be played
+    public int getRemainingChunks() {
+        return mChunks.size() - mIndex;
+    }
+
+    private void waitForChunk(int index) throws IOException {
+        if (mSpeed <= 0)
+            return;
+        long now = System.nanoTime();
+        if (mStartedAt == 0)
+            mStartedAt = now;
+        long due = mStartedAt + (long) (mOffsets[index] / mSpeed);
+        // Sleep in short steps so that close() ends the session promptly
+        while (now < due && !isClosed) {
+            long wait = Math.min(due - now, 100 * 1000000L);
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            now = System.nanoTime();
+        }
+        if (isClosed)
+            throw new IOException("Stream closed");
+    }
+}
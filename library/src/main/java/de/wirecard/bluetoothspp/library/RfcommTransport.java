@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+// Bluetooth RFCOMM sockets of a BluetoothAdapter, the default transport
+public class RfcommTransport implements Transport {
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    public Acceptor listen(String name, UUID service) throws IOException {
+        final BluetoothServerSocket serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(name, service);
+        return new Acceptor() {
+            public Link accept() throws IOException {
+                return new SocketLink(null, serverSocket.accept());
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    public Link open(String address, UUID service) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return new SocketLink(mAdapter, device.createRfcommSocketToServiceRecord(service));
+    }
+
+    // Wrap a socket connected elsewhere
+    public static Link wrap(BluetoothSocket socket) {
+        return new SocketLink(null, socket);
+    }
+
+    private static class SocketLink implements Link {
+        private final BluetoothAdapter mmAdapter;
+        private final BluetoothSocket mmSocket;
+
+        // adapter : Set for outgoing links, discovery is cancelled before connecting
+        SocketLink(BluetoothAdapter adapter, BluetoothSocket socket) {
+            mmAdapter = adapter;
+            mmSocket = socket;
+        }
+
+        public void connect() throws IOException {
+            // Always cancel discovery because it will slow down a connection
+            if (mmAdapter != null)
+                mmAdapter.cancelDiscovery();
+            mmSocket.connect();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        public String getName() {
+            return mmSocket.getRemoteDevice().getName();
+        }
+
+        public String getAddress() {
+            return mmSocket.getRemoteDevice().getAddress();
+        }
+
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+// Blocking InputStream over a ring buffer with one producer, the reader
+// thread of the connection, and one consumer. The positions are volatile
+// counters that only their own side advances, so a read or offer takes no
+// lock and copies the data once. A side that has to wait parks and is
+// unparked by the other side once it has moved its counter.
+class RingInputStream extends InputStream {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final byte[] mRing;
+    private final int mMask;
+
+    // Bytes ever offered and ever read, head - tail is the fill level
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+
+    private volatile Thread mWaitingReader = null;
+    private volatile Thread mWaitingWriter = null;
+
+    private volatile boolean isClosed = false;
+    private volatile boolean isFinished = false;
+    private volatile IOException mError = null;
+
+    // capacity : Rounded up to a power of two
+    RingInputStream(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    // Producer side, blocks while the ring is full. Returns without
+    // copying everything if the stream was closed or finished meanwhile.
+    void offer(byte[] data, int offset, int length) throws InterruptedIOException {
+        while (length > 0 && !isClosed && !isFinished) {
+            long head = mHead;
+            int free = mRing.length - (int) (head - mTail);
+            if (free == 0) {
+                mWaitingWriter = Thread.currentThread();
+                // Check again, the reader may have moved on before it
+                // could see us waiting
+                if (mRing.length - (int) (head - mTail) == 0 && !isClosed && !isFinished)
+                    LockSupport.park(this);
+                mWaitingWriter = null;
+                if (Thread.interrupted())
+                    throw new InterruptedIOException();
+                continue;
+            }
+            int n = Math.min(length, free);
+            copyIn(head, data, offset, n);
+            mHead = head + n;
+            wake(mWaitingReader);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // Producer side, called once when the connection has ended. Buffered
+    // data stays readable, then read() returns -1 or throws the error.
+    // error : null for an orderly end
+    synchronized void finish(IOException error) {
+        if (isFinished)
+            return;
+        mError = error;
+        isFinished = true;
+        wake(mWaitingReader);
+        wake(mWaitingWriter);
+    }
+
+    public int read() throws IOException {
+        if (!awaitData())
+            return end();
+        long tail = mTail;
+        int b = mRing[(int) tail & mMask] & 0xFF;
+        mTail = tail + 1;
+        wake(mWaitingWriter);
+        return b;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.length)
+            throw new IndexOutOfBoundsException();
+        if (length == 0)
+            return 0;
+        if (!awaitData())
+            return end();
+        long tail = mTail;
+        int n = Math.min(length, (int) (mHead - tail));
+        copyOut(tail, buffer, offset, n);
+        mTail = tail + n;
+        wake(mWaitingWriter);
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !awaitData())
+            return 0;
+        long tail = mTail;
+        int skipped = (int) Math.min(n, mHead - tail);
+        mTail = tail + skipped;
+        wake(mWaitingWriter);
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        if (isClosed)
+            throw new IOException("Stream closed");
+        return (int) (mHead - mTail);
+    }
+
+    // Stops buffering, the connection itself stays open
+    public void close() {
+        isClosed = true;
+        wake(mWaitingWriter);
+        wake(mWaitingReader);
+    }
+
+    boolean isClosed() {
+        return isClosed;
+    }
+
+    // Blocks until there is data, false once finished and drained
+    private boolean awaitData() throws IOException {
+        while (true) {
+            if (isClosed)
+                throw new IOException("Stream closed");
+            if (mHead != mTail)
+                return true;
+            if (isFinished)
+                return mHead != mTail;
+            mWaitingReader = Thread.currentThread();
+            if (mHead == mTail && !isFinished && !isClosed)
+                LockSupport.park(this);
+            mWaitingReader = null;
+            if (Thread.interrupted())
+                throw new InterruptedIOException();
+        }
+    }
+
+    private int end() throws IOException {
+        IOException error = mError;
+        if (error != null)
+            throw new IOException("Connection lost", error);
+        return -1;
+    }
+
+    private void copyIn(long position, byte[] data, int offset, int length) {
+        int start = (int) position & mMask;
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(data, offset, mRing, start, first);
+        System.arraycopy(data, offset + first, mRing, 0, length - first);
+    }
+
+    private void copyOut(long position, byte[] buffer, int offset, int length) {
+        int start = (int) position & mMask;
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(mRing, start, buffer, offset, first);
+        System.arraycopy(mRing, 0, buffer, offset + first, length - first);
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+}
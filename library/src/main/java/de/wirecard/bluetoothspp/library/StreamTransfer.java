@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+// Streams an InputStream or FileChannel to the connected device on the bulk
+// lane. The source is read into one reusable buffer, so memory use is the
+// buffer plus the bounded bulk lane whatever the size of the source. The
+// source is not closed when the transfer ends.
+public class StreamTransfer {
+    private static final long PROGRESS_INTERVAL_NANOS = 100 * 1000000L;
+
+    private final BluetoothService mService;
+    // Runs the listener calls on the main thread
+    private final Executor mMainThread;
+    private final TransferListener mListener;
+    private final InputStream mInput;
+    private final FileChannel mChannel;
+    private final int mChunkSize;
+    private final long mTotalBytes;
+
+    private volatile boolean isCancelled = false;
+    private volatile boolean isFinished = false;
+    private volatile long mBytesSent = 0;
+    private long mStartedAt = 0;
+
+    // The transfer thread while it waits for room on the bulk lane, the
+    // only time cancel() may interrupt it
+    private final Object mWriteLock = new Object();
+    private Thread mWriter = null;
+
+    public interface TransferListener {
+        // bytesPerSecond : Average rate since the transfer started
+        // totalBytes     : Size of the source, -1 if unknown
+        public void onTransferProgress(long bytesSent, long totalBytes, long bytesPerSecond);
+        public void onTransferCompleted(long bytesSent);
+        public void onTransferCancelled(long bytesSent);
+        public void onTransferFailed(long bytesSent, IOException e);
+    }
+
+    StreamTransfer(BluetoothService service, Executor mainThread, InputStream input,
+                   int chunkSize, TransferListener listener) {
+        this(service, mainThread, input, null, chunkSize, -1, listener);
+    }
+
+    StreamTransfer(BluetoothService service, Executor mainThread, FileChannel channel,
+                   int chunkSize, TransferListener listener) throws IOException {
+        this(service, mainThread, null, channel, chunkSize,
+                channel.size() - channel.position(), listener);
+    }
+
+    private StreamTransfer(BluetoothService service, Executor mainThread, InputStream input,
+                           FileChannel channel, int chunkSize, long totalBytes,
+                           TransferListener listener) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        mService = service;
+        mMainThread = mainThread;
+        mInput = input;
+        mChannel = channel;
+        mChunkSize = chunkSize;
+        mTotalBytes = totalBytes;
+        mListener = listener;
+    }
+
+    void start() {
+        new Thread("Bluetooth transfer") {
+            public void run() {
+                transfer();
+            }
+        }.start();
+    }
+
+    // Stop reading from the source, data already queued is still written.
+    // A transfer waiting for room on the bulk lane is interrupted, one
+    // reading is not since that would close a FileChannel.
+    public void cancel() {
+        isCancelled = true;
+        synchronized (mWriteLock) {
+            if (mWriter != null)
+                mWriter.interrupt();
+        }
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    // Bytes handed to the writer so far
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private void transfer() {
+        mStartedAt = System.nanoTime();
+        long lastProgress = mStartedAt;
+        long sent = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(mChunkSize);
+            byte[] array = buffer.array();
+            while (!isCancelled) {
+                int n;
+                if (mChannel != null) {
+                    buffer.clear();
+                    n = mChannel.read(buffer);
+                } else {
+                    n = mInput.read(array, 0, mChunkSize);
+                }
+                if (n < 0)
+                    break;
+                if (n == 0)
+                    continue;
+                if (!write(array, n)) {
+                    if (isCancelled)
+                        break;
+                    throw new IOException("Connection lost");
+                }
+                sent += n;
+                mBytesSent = sent;
+
+                long now = System.nanoTime();
+                if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    postProgress(sent, now);
+                }
+            }
+        } catch (IOException e) {
+            fail(sent, e);
+            return;
+        } catch (RuntimeException e) {
+            // A broken source must not end the thread without a word
+            fail(sent, new IOException("Transfer failed", e));
+            return;
+        }
+        isFinished = true;
+        postProgress(sent, System.nanoTime());
+        if (isCancelled)
+            postCancelled(sent);
+        else
+            postCompleted(sent);
+    }
+
+    // Write a chunk, interruptible by cancel() while the lane is full
+    private boolean write(byte[] array, int length) {
+        synchronized (mWriteLock) {
+            if (isCancelled)
+                return false;
+            mWriter = Thread.currentThread();
+        }
+        try {
+            return mService.write(array, 0, length, BluetoothState.PRIORITY_BULK);
+        } finally {
+            synchronized (mWriteLock) {
+                mWriter = null;
+            }
+            // An interrupt of cancel() must not reach the next read
+            Thread.interrupted();
+        }
+    }
+
+    private void fail(long sent, IOException e) {
+        isFinished = true;
+        if (isCancelled)
+            postCancelled(sent);
+        else
+            postFailed(sent, e);
+    }
+
+    private void postProgress(final long sent, long now) {
+        if (mListener == null)
+            return;
+        long elapsed = now - mStartedAt;
+        final long rate = elapsed > 0 ? (long) (sent * 1000000000d / elapsed) : 0;
+        mMainThread.execute(new Runnable() {
+            public void run() {
+                mListener.onTransferProgress(sent, mTotalBytes, rate);
+            }
+        });
+    }
+
+    private void postCompleted(final long sent) {
+        if (mListener == null)
+            return;
+        mMainThread.execute(new Runnable() {
+            public void run() {
+                mListener.onTransferCompleted(sent);
+            }
+        });
+    }
+
+    private void postCancelled(final long sent) {
+        if (mListener == null)
+            return;
+        mMainThread.execute(new Runnable() {
+            public void run() {
+                mListener.onTransferCancelled(sent);
+            }
+        });
+    }
+
+    private void postFailed(final long sent, final IOException e) {
+        if (mListener == null)
+            return;
+        mMainThread.execute(new Runnable() {
+            public void run() {
+                mListener.onTransferFailed(sent, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+
+// TCP sockets in place of RFCOMM, e.g. for the emulator or load tests.
+// Addresses are "host:port", the service UUID is ignored.
+public class TcpTransport implements Transport {
+    private final int mPort;
+    private final int mConnectTimeout;
+
+    // port           : Port listen() binds to
+    // connectTimeout : Milliseconds, 0 waits as long as the system does
+    public TcpTransport(int port, int connectTimeout) {
+        mPort = port;
+        mConnectTimeout = connectTimeout;
+    }
+
+    public Acceptor listen(String name, UUID service) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mPort));
+        return new Acceptor() {
+            public Link accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                return new SocketLink(socket, null);
+            }
+
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    public Link open(String address, UUID service) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0)
+            throw new IOException("Address must be host:port: " + address);
+        InetSocketAddress remote;
+        try {
+            remote = InetSocketAddress.createUnresolved(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid address: " + address);
+        }
+        return new SocketLink(new Socket(), remote);
+    }
+
+    private class SocketLink implements Link {
+        private final Socket mmSocket;
+        private final InetSocketAddress mmRemote;
+
+        // remote : Set for outgoing links
+        SocketLink(Socket socket, InetSocketAddress remote) {
+            mmSocket = socket;
+            mmRemote = remote;
+        }
+
+        public void connect() throws IOException {
+            // Resolve on this thread, never on the caller of open()
+            InetSocketAddress remote = new InetSocketAddress(mmRemote.getHostName(), mmRemote.getPort());
+            mmSocket.connect(remote, mConnectTimeout);
+            mmSocket.setTcpNoDelay(true);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        public String getName() {
+            return getAddress();
+        }
+
+        public String getAddress() {
+            InetSocketAddress remote = (InetSocketAddress) mmSocket.getRemoteSocketAddress();
+            if (remote == null)
+                remote = mmRemote;
+            String host = remote.getAddress() != null
+                    ? remote.getAddress().getHostAddress() : remote.getHostName();
+            return host + ":" + remote.getPort();
+        }
+
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Structured event trace of a BluetoothService. Events below the current
+// level are rejected by one volatile read, everything else is stored as
+// primitives in a preallocated ring which keeps the latest events for a
+// dump after a field incident. An optional listener sees every event too,
+// e.g. to forward it to logcat.
+//
+// A slot is a seqlock: the writer claims it, stores the payload and then
+// the sequence number, a reader takes the payload only if it finds that
+// number before and after. The payload lives in atomic arrays, so these
+// reads and writes are ordered against the stamp; plain arrays would let
+// them move across it.
+public class Tracer {
+    // Levels, an event is recorded if its level is at or below the current one
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_ERROR = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_DEBUG = 3;
+
+    // Events and the meaning of their two arguments
+    public static final int EVENT_STATE = 1;            // old state, new state
+    public static final int EVENT_IO_ERROR = 2;         // phase, -
+    public static final int EVENT_CONNECT_START = 3;    // -, -
+    public static final int EVENT_CONNECTED = 4;        // connect nanos or -1 if accepted, -
+    public static final int EVENT_CONNECT_FAILED = 5;   // connect nanos, -
+    public static final int EVENT_CONNECTION_LOST = 6;  // bytes read on the connection, -
+    public static final int EVENT_READ = 7;             // bytes, -
+    public static final int EVENT_WRITE = 8;            // bytes, socket nanos
+
+    // Phases of EVENT_IO_ERROR
+    public static final int PHASE_LISTEN = 1;
+    public static final int PHASE_ACCEPT = 2;
+    public static final int PHASE_CREATE_SOCKET = 3;
+    public static final int PHASE_CONNECT = 4;
+    public static final int PHASE_OPEN_STREAMS = 5;
+    public static final int PHASE_READ = 6;
+    public static final int PHASE_WRITE = 7;
+    public static final int PHASE_CLOSE = 8;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public interface TraceListener {
+        // error : The exception of an EVENT_IO_ERROR, otherwise null
+        public void onTraceEvent(int level, int event, long arg1, long arg2,
+                                 Throwable error, long timestampNanos);
+    }
+
+    private volatile int mLevel = LEVEL_INFO;
+    private volatile TraceListener mListener = null;
+
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    // Sequence number a slot was last written with, stored after the slot.
+    // EMPTY for none, WRITING while a writer owns the slot.
+    private static final long EMPTY = -1;
+    private static final long WRITING = -2;
+    private final AtomicLongArray mStamps;
+    private final AtomicLongArray mTimes;
+    private final AtomicIntegerArray mLevels;
+    private final AtomicIntegerArray mEvents;
+    private final AtomicLongArray mArgs1;
+    private final AtomicLongArray mArgs2;
+    private final AtomicReferenceArray<Throwable> mErrors;
+
+    public Tracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // capacity : Events kept in the ring, rounded up to a power of two
+    public Tracer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mStamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            mStamps.set(i, EMPTY);
+        mTimes = new AtomicLongArray(size);
+        mLevels = new AtomicIntegerArray(size);
+        mEvents = new AtomicIntegerArray(size);
+        mArgs1 = new AtomicLongArray(size);
+        mArgs2 = new AtomicLongArray(size);
+        mErrors = new AtomicReferenceArray<Throwable>(size);
+    }
+
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= mLevel;
+    }
+
+    public void setTraceListener(TraceListener listener) {
+        mListener = listener;
+    }
+
+    public void trace(int level, int event, long arg1, long arg2) {
+        if (level <= mLevel)
+            record(level, event, arg1, arg2, null);
+    }
+
+    // Record an EVENT_IO_ERROR, the exception is kept for the dump
+    public void ioError(int phase, Throwable error) {
+        if (LEVEL_ERROR <= mLevel)
+            record(LEVEL_ERROR, EVENT_IO_ERROR, phase, 0, error);
+    }
+
+    public void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            long stamp = mStamps.get(i);
+            // A slot being written is left to its writer
+            if (stamp != WRITING && mStamps.compareAndSet(i, stamp, EMPTY))
+                mErrors.set(i, null);
+        }
+    }
+
+    // Write the events still in the ring, oldest first
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        dump(out);
+        return out.toString();
+    }
+
+    public void dump(StringBuilder out) {
+        long end = mNext.get();
+        long start = Math.max(0, end - (mMask + 1));
+        for (long seq = start; seq < end; seq++) {
+            int i = (int) (seq & mMask);
+            if (mStamps.get(i) != seq)
+                continue;
+            long time = mTimes.get(i);
+            int level = mLevels.get(i);
+            int event = mEvents.get(i);
+            long arg1 = mArgs1.get(i);
+            long arg2 = mArgs2.get(i);
+            Throwable error = mErrors.get(i);
+            // Skip slots being written or already overwritten
+            if (mStamps.get(i) != seq)
+                continue;
+            out.append(time / 1000000L).append("ms ")
+                    .append(getLevelName(level)).append(' ')
+                    .append(format(event, arg1, arg2));
+            if (error != null)
+                out.append(": ").append(error);
+            out.append('\n');
+        }
+    }
+
+    public static String format(int event, long arg1, long arg2) {
+        switch (event) {
+            case EVENT_STATE:
+                return "state " + getStateName((int) arg1) + " -> " + getStateName((int) arg2);
+            case EVENT_IO_ERROR:
+                return "I/O error in " + getPhaseName((int) arg1);
+            case EVENT_CONNECT_START:
+                return "connect started";
+            case EVENT_CONNECTED:
+                return arg1 < 0 ? "connection accepted" : "connected after " + arg1 / 1000000L + "ms";
+            case EVENT_CONNECT_FAILED:
+                return "connect failed after " + arg1 / 1000000L + "ms";
+            case EVENT_CONNECTION_LOST:
+                return "connection lost after " + arg1 + " bytes";
+            case EVENT_READ:
+                return "read " + arg1 + " bytes";
+            case EVENT_WRITE:
+                return "wrote " + arg1 + " bytes in " + arg2 / 1000L + "us";
+            default:
+                return "event " + event + " " + arg1 + " " + arg2;
+        }
+    }
+
+    public static String getStateName(int state) {
+        switch (state) {
+            case BluetoothState.STATE_NONE:
+                return "STATE_NONE";
+            case BluetoothState.STATE_LISTEN:
+                return "STATE_LISTEN";
+            case BluetoothState.STATE_CONNECTING:
+                return "STATE_CONNECTING";
+            case BluetoothState.STATE_CONNECTED:
+                return "STATE_CONNECTED";
+            case BluetoothState.STATE_NULL:
+                return "STATE_NULL";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private static String getPhaseName(int phase) {
+        switch (phase) {
+            case PHASE_LISTEN:
+                return "listen";
+            case PHASE_ACCEPT:
+                return "accept";
+            case PHASE_CREATE_SOCKET:
+                return "create socket";
+            case PHASE_CONNECT:
+                return "connect";
+            case PHASE_OPEN_STREAMS:
+                return "open streams";
+            case PHASE_READ:
+                return "read";
+            case PHASE_WRITE:
+                return "write";
+            case PHASE_CLOSE:
+                return "close";
+            default:
+                return "phase " + phase;
+        }
+    }
+
+    private static String getLevelName(int level) {
+        switch (level) {
+            case LEVEL_ERROR:
+                return "E";
+            case LEVEL_INFO:
+                return "I";
+            default:
+                return "D";
+        }
+    }
+
+    private void record(int level, int event, long arg1, long arg2, Throwable error) {
+        long now = System.nanoTime();
+        long seq = mNext.getAndIncrement();
+        int i = (int) (seq & mMask);
+        // Claim the slot. A writer a whole lap behind may still own it, then
+        // this event only goes to the listener.
+        long stamp = mStamps.get(i);
+        if (stamp != WRITING && mStamps.compareAndSet(i, stamp, WRITING)) {
+            // lazySet keeps every store after the claim and before the stamp
+            mTimes.lazySet(i, now);
+            mLevels.lazySet(i, level);
+            mEvents.lazySet(i, event);
+            mArgs1.lazySet(i, arg1);
+            mArgs2.lazySet(i, arg2);
+            mErrors.lazySet(i, error);
+            mStamps.lazySet(i, seq);
+        }
+
+        TraceListener listener = mListener;
+        if (listener != null)
+            listener.onTraceEvent(level, event, arg1, arg2, error, now);
+    }
+}
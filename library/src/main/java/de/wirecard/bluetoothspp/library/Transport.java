@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+// Where BluetoothService gets its sockets from. RfcommTransport is the real
+// radio, LoopbackTransport and TcpTransport let the same threads and state
+// machine run off-device, e.g. in JVM tests or against a desktop peer.
+public interface Transport {
+    // Start listening for incoming connections to the given service
+    public Acceptor listen(String name, UUID service) throws IOException;
+
+    // Create an unconnected link to a remote address, connect() it afterwards
+    public Link open(String address, UUID service) throws IOException;
+
+    public interface Acceptor extends Closeable {
+        // Blocks until a peer connects, close() makes it throw
+        public Link accept() throws IOException;
+    }
+
+    public interface Link extends Closeable {
+        // Blocks until connected, close() from another thread aborts it
+        public void connect() throws IOException;
+
+        public InputStream getInputStream() throws IOException;
+
+        public OutputStream getOutputStream() throws IOException;
+
+        public String getName();
+
+        public String getAddress();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records the bytes read and written by a connection into a fixed-size
+// memory-mapped ring file. Threads reserve space with one atomic add and
+// copy into the mapping, the kernel writes it back to the file, so the I/O
+// threads never wait for a lock or the disk. Records are committed in the
+// order they were reserved, a thread at most spins while the other one
+// finishes copying an earlier record. Once the ring is full the oldest
+// records are overwritten. Read a capture with WireCaptureReader.
+//
+// File layout, big endian:
+//   header  [magic : 4][version : 4][capacity : 4][reserved : 4]
+//           [head : 8][wall clock millis : 8][nanos at that time : 8][0 : 24]
+//   ring    capacity bytes of records, wrapping around
+//   record  [magic : 2][direction : 1][flags : 1][length : 4][nanos : 8][payload]
+public class WireCapture {
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    public static final int FLAG_TRUNCATED = 1;
+
+    static final int FILE_MAGIC = 0x53505043;   // "SPPC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int OFFSET_HEAD = 16;
+    static final int OFFSET_WALL_CLOCK = 24;
+    static final int OFFSET_NANOS = 32;
+
+    static final short RECORD_MAGIC = 0x5743;   // "WC"
+    static final int RECORD_HEADER_SIZE = 16;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMap;
+    private final int mCapacity;
+    private final int mMaxPayload;
+    private final AtomicLong mHead = new AtomicLong();
+    // End of the records written completely, only ever moves forward
+    private final AtomicLong mCommitted = new AtomicLong();
+    private final AtomicLong mTruncated = new AtomicLong();
+    private volatile boolean isClosed = false;
+
+    // Every thread writes through its own view of the mapping
+    private final ThreadLocal<ByteBuffer> mViews = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return mMap.duplicate();
+        }
+    };
+
+    // file     : Created or overwritten
+    // capacity : Size of the ring in bytes
+    public WireCapture(File file, int capacity) throws IOException {
+        if (capacity < 4096)
+            throw new IllegalArgumentException("capacity must be at least 4096 bytes");
+        mCapacity = capacity;
+        // Keep single records small enough not to wipe the whole ring
+        mMaxPayload = capacity / 4;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        mMap.putInt(0, FILE_MAGIC);
+        mMap.putInt(4, VERSION);
+        mMap.putInt(8, capacity);
+        mMap.putLong(OFFSET_HEAD, 0);
+        mMap.putLong(OFFSET_WALL_CLOCK, System.currentTimeMillis());
+        mMap.putLong(OFFSET_NANOS, System.nanoTime());
+    }
+
+    // Append a record, called by the reader and writer threads
+    // direction : DIRECTION_IN or DIRECTION_OUT
+    public void record(int direction, byte[] data, int offset, int length) {
+        if (isClosed || length <= 0)
+            return;
+        long nanos = System.nanoTime();
+        int flags = 0;
+        if (length > mMaxPayload) {
+            length = mMaxPayload;
+            flags |= FLAG_TRUNCATED;
+            mTruncated.incrementAndGet();
+        }
+        int size = RECORD_HEADER_SIZE + length;
+        long start = mHead.getAndAdd(size);
+        ByteBuffer view = mViews.get();
+
+        int position = (int) (start % mCapacity);
+        if (position + RECORD_HEADER_SIZE <= mCapacity) {
+            int at = HEADER_SIZE + position;
+            view.putShort(at, RECORD_MAGIC);
+            view.put(at + 2, (byte) direction);
+            view.put(at + 3, (byte) flags);
+            view.putInt(at + 4, length);
+            view.putLong(at + 8, nanos);
+        } else {
+            // The record header itself wraps, write it byte by byte
+            long header = ((long) (RECORD_MAGIC & 0xFFFF) << 48) | ((long) (direction & 0xFF) << 40)
+                    | ((long) (flags & 0xFF) << 32) | (length & 0xFFFFFFFFL);
+            for (int i = 0; i < 8; i++)
+                view.put(HEADER_SIZE + (position + i) % mCapacity, (byte) (header >>> (56 - 8 * i)));
+            for (int i = 0; i < 8; i++)
+                view.put(HEADER_SIZE + (position + 8 + i) % mCapacity, (byte) (nanos >>> (56 - 8 * i)));
+        }
+
+        position = (int) ((start + RECORD_HEADER_SIZE) % mCapacity);
+        int first = Math.min(length, mCapacity - position);
+        view.position(HEADER_SIZE + position);
+        view.put(data, offset, first);
+        if (first < length) {
+            view.position(HEADER_SIZE);
+            view.put(data, offset + first, length - first);
+        }
+
+        // Readers use the head to find the newest record, so it must not
+        // cover a record still being copied. Wait for the earlier ones and
+        // publish before passing on, which keeps the head moving forward.
+        while (mCommitted.get() != start)
+            Thread.yield();
+        view.putLong(OFFSET_HEAD, start + size);
+        mCommitted.set(start + size);
+    }
+
+    // Total bytes of records written, including overwritten ones
+    public long getRecordedBytes() {
+        return mHead.get();
+    }
+
+    // Records cut to a quarter of the ring
+    public long getTruncatedRecords() {
+        return mTruncated.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    // Push the mapping to the file, e.g. before handing the capture over
+    public void flush() {
+        mMap.force();
+    }
+
+    public void close() throws IOException {
+        isClosed = true;
+        mMap.force();
+        mChannel.close();
+        mFile.close();
+    }
+}
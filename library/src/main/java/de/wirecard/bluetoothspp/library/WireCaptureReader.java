@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads the ring file of a WireCapture, oldest record first, and exports it
+// as a hex dump or as a pcap file. Also usable from the command line:
+//   java WireCaptureReader capture.bin             hex dump to stdout
+//   java WireCaptureReader capture.bin out.pcap    pcap export
+public class WireCaptureReader {
+    // pcap link type for private use, every packet starts with one byte
+    // holding the direction, 0 for received and 1 for sent
+    public static final int PCAP_LINKTYPE_USER0 = 147;
+
+    private final ByteBuffer mRing;
+    private final int mCapacity;
+    private final long mHead;
+    private final long mWallClock;
+    private final long mNanos;
+
+    public static class Record {
+        public final int direction;
+        public final boolean isTruncated;
+        public final long timestampNanos;
+        // Wall clock time derived from the capture start
+        public final long timestampMillis;
+        public final byte[] data;
+
+        Record(int direction, boolean isTruncated, long timestampNanos, long timestampMillis, byte[] data) {
+            this.direction = direction;
+            this.isTruncated = isTruncated;
+            this.timestampNanos = timestampNanos;
+            this.timestampMillis = timestampMillis;
+            this.data = data;
+        }
+    }
+
+    public WireCaptureReader(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            if (content.length < WireCapture.HEADER_SIZE || buffer.getInt(0) != WireCapture.FILE_MAGIC)
+                throw new IOException("Not a wire capture: " + file);
+            if (buffer.getInt(4) != WireCapture.VERSION)
+                throw new IOException("Unsupported capture version " + buffer.getInt(4));
+            mCapacity = buffer.getInt(8);
+            mHead = buffer.getLong(WireCapture.OFFSET_HEAD);
+            mWallClock = buffer.getLong(WireCapture.OFFSET_WALL_CLOCK);
+            mNanos = buffer.getLong(WireCapture.OFFSET_NANOS);
+            buffer.position(WireCapture.HEADER_SIZE);
+            mRing = buffer.slice();
+            if (mRing.capacity() < mCapacity)
+                throw new IOException("Capture file is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    // All intact records still in the ring, oldest first
+    public List<Record> readAll() {
+        List<Record> records = new ArrayList<Record>();
+        long position = Math.max(0, mHead - mCapacity);
+        while (position + WireCapture.RECORD_HEADER_SIZE <= mHead) {
+            int length = recordLength(position);
+            if (length < 0 || position + WireCapture.RECORD_HEADER_SIZE + length > mHead) {
+                // Overwritten or torn record, look for the next one
+                position++;
+                continue;
+            }
+            int flags = byteAt(position + 3);
+            long nanos = longAt(position + 8);
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++)
+                data[i] = (byte) byteAt(position + WireCapture.RECORD_HEADER_SIZE + i);
+            records.add(new Record(byteAt(position + 2), (flags & WireCapture.FLAG_TRUNCATED) != 0,
+                    nanos, mWallClock + (nanos - mNanos) / 1000000L, data));
+            position += WireCapture.RECORD_HEADER_SIZE + length;
+        }
+        return records;
+    }
+
+    // Readable dump, one line per record followed by hex and text columns
+    public void exportText(PrintStream out) {
+        for (Record record : readAll()) {
+            out.println(String.format("%tF %<tT.%<tL %s %d bytes%s", record.timestampMillis,
+                    record.direction == WireCapture.DIRECTION_IN ? "<-" : "->",
+                    record.data.length, record.isTruncated ? " (truncated)" : ""));
+            for (int line = 0; line < record.data.length; line += 16) {
+                StringBuilder hex = new StringBuilder();
+                StringBuilder text = new StringBuilder();
+                for (int i = line; i < line + 16; i++) {
+                    if (i < record.data.length) {
+                        int b = record.data[i] & 0xFF;
+                        hex.append(String.format("%02x ", b));
+                        text.append(b >= 0x20 && b < 0x7F ? (char) b : '.');
+                    } else {
+                        hex.append("   ");
+                    }
+                }
+                out.println(String.format("  %04x  %s %s", line, hex, text));
+            }
+        }
+    }
+
+    // pcap file with link type USER0, see PCAP_LINKTYPE_USER0
+    public void exportPcap(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        // Global header, written big endian with the matching magic
+        out.writeInt(0xA1B2C3D4);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(65535);
+        out.writeInt(PCAP_LINKTYPE_USER0);
+        for (Record record : readAll()) {
+            long micros = mWallClock * 1000L + (record.timestampNanos - mNanos) / 1000L;
+            int length = record.data.length + 1;
+            out.writeInt((int) (micros / 1000000L));
+            out.writeInt((int) (micros % 1000000L));
+            out.writeInt(length);
+            out.writeInt(length);
+            out.writeByte(record.direction);
+            out.write(record.data);
+        }
+        out.flush();
+    }
+
+    private int recordLength(long position) {
+        if (((byteAt(position) << 8) | byteAt(position + 1)) != (WireCapture.RECORD_MAGIC & 0xFFFF))
+            return -1;
+        int direction = byteAt(position + 2);
+        if (direction != WireCapture.DIRECTION_IN && direction != WireCapture.DIRECTION_OUT)
+            return -1;
+        long length = longAt(position) & 0xFFFFFFFFL;
+        return length > mCapacity ? -1 : (int) length;
+    }
+
+    private int byteAt(long position) {
+        return mRing.get((int) (position % mCapacity)) & 0xFF;
+    }
+
+    private long longAt(long position) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | byteAt(position + i);
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: WireCaptureReader <capture> [<output.pcap>]");
+            System.exit(2);
+        }
+        WireCaptureReader reader = new WireCaptureReader(new File(args[0]));
+        if (args.length > 1) {
+            FileOutputStream out = new FileOutputStream(args[1]);
+            try {
+                reader.exportPcap(out);
+            } finally {
+                out.close();
+            }
+        } else {
+            reader.exportText(System.out);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Pipelining against a fake peer on the other end of a LoopbackTransport.
+// Requests and responses are lines, the first character is the ID.
+public class BluetoothRpcTest {
+    private static final BluetoothRpc.CorrelationIdExtractor FIRST_BYTE = new BluetoothRpc.CorrelationIdExtractor() {
+        public int getRequestId(byte[] request) {
+            return request[0];
+        }
+
+        public int getResponseId(byte[] buffer, int offset, int length) {
+            return buffer[offset];
+        }
+    };
+
+    private LoopbackTransport mPhone;
+    private BluetoothService mService;
+    private volatile BluetoothRpc mRpc;
+    private InputStream mPeerIn;
+    private OutputStream mPeerOut;
+
+    @Before
+    public void setUp() throws Exception {
+        mPhone = new LoopbackTransport("phone");
+        mService = newService(mPhone);
+        mService.start(BluetoothState.DEVICE_OTHER);
+        Transport.Link peer = mPhone.attach("printer").open("phone", BluetoothState.UUID_OTHER_DEVICE);
+        peer.connect();
+        mPeerIn = peer.getInputStream();
+        mPeerOut = peer.getOutputStream();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mService.getState() != BluetoothState.STATE_CONNECTED) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Not connected");
+            Thread.sleep(1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mRpc != null)
+            mRpc.close();
+        mService.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void pipelinesRequestsAndMatchesResponsesOutOfOrder() throws Exception {
+        mRpc = newRpc(mService, 4);
+        Future<byte[]> a = mRpc.call(request('A'), 5000);
+        Future<byte[]> b = mRpc.call(request('B'), 5000);
+        Future<byte[]> c = mRpc.call(request('C'), 5000);
+        Future<byte[]> d = mRpc.call(request('D'), 5000);
+
+        // All four reach the peer before any response
+        assertEquals("A?", readLine());
+        assertEquals("B?", readLine());
+        assertEquals("C?", readLine());
+        assertEquals("D?", readLine());
+        assertEquals(4, mRpc.getOutstandingCount());
+
+        respond("D!");
+        respond("B!");
+        respond("C!");
+        respond("A!");
+        assertEquals("A!\n", new String(a.get(2, TimeUnit.SECONDS)));
+        assertEquals("B!\n", new String(b.get(2, TimeUnit.SECONDS)));
+        assertEquals("C!\n", new String(c.get(2, TimeUnit.SECONDS)));
+        assertEquals("D!\n", new String(d.get(2, TimeUnit.SECONDS)));
+        assertEquals(4, mRpc.getCompletedCount());
+        assertEquals(0, mRpc.getOutstandingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void queuesRequestsBeyondTheWindow() throws Exception {
+        mRpc = newRpc(mService, 2);
+        mRpc.call(request('A'), 5000);
+        Future<byte[]> b = mRpc.call(request('B'), 5000);
+        Future<byte[]> c = mRpc.call(request('C'), 5000);
+
+        assertEquals("A?", readLine());
+        assertEquals("B?", readLine());
+        assertEquals(2, mRpc.getOutstandingCount());
+        assertEquals(1, mRpc.getQueuedCount());
+
+        respond("B!");
+        assertEquals("B!\n", new String(b.get(2, TimeUnit.SECONDS)));
+        assertEquals("C?", readLine());
+        respond("C!");
+        assertEquals("C!\n", new String(c.get(2, TimeUnit.SECONDS)));
+    }
+
+    @Test(timeout = 10000)
+    public void requestWithBusyIdDoesNotHoldUpOthers() throws Exception {
+        mRpc = newRpc(mService, 4);
+        Future<byte[]> first = mRpc.call(request('A'), 5000);
+        Future<byte[]> second = mRpc.call(request('A'), 5000);
+        Future<byte[]> other = mRpc.call(request('B'), 5000);
+
+        assertEquals("A?", readLine());
+        assertEquals("B?", readLine());
+        respond("B!");
+        assertEquals("B!\n", new String(other.get(2, TimeUnit.SECONDS)));
+        assertFalse(second.isDone());
+
+        respond("A!");
+        assertEquals("A!\n", new String(first.get(2, TimeUnit.SECONDS)));
+        assertEquals("A?", readLine());
+        respond("A!");
+        assertEquals("A!\n", new String(second.get(2, TimeUnit.SECONDS)));
+    }
+
+    @Test(timeout = 10000)
+    public void unansweredCallTimesOut() throws Exception {
+        mRpc = newRpc(mService, 4);
+        Future<byte[]> call = mRpc.call(request('A'), 50);
+        try {
+            call.get(2, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, mRpc.getTimedOutCount());
+        assertEquals(0, mRpc.getOutstandingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void callFailsAtOnceWhenNotConnected() throws Exception {
+        BluetoothService idle = newService(new LoopbackTransport("idle"));
+        mRpc = newRpc(idle, 4);
+        Future<byte[]> call = mRpc.call(request('A'), 5000);
+        assertTrue(call.isDone());
+        try {
+            call.get();
+            fail("Expected a failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, mRpc.getOutstandingCount());
+    }
+
+    @Test(timeout = 20000)
+    public void pipeliningBeatsOneRequestAtATime() throws Exception {
+        // Every response takes the peer 20ms, no matter how many are pending
+        ScheduledExecutorService peer = startDelayedPeer(20);
+        try {
+            long serial = runCalls(1, 16);
+            long pipelined = runCalls(8, 16);
+            assertTrue("serial " + serial / 1000000 + "ms, pipelined " + pipelined / 1000000 + "ms",
+                    pipelined * 2 < serial);
+        } finally {
+            peer.shutdownNow();
+        }
+    }
+
+    // Nanoseconds until all calls through a new BluetoothRpc are answered
+    private long runCalls(int maxOutstanding, int count) throws Exception {
+        if (mRpc != null)
+            mRpc.close();
+        mRpc = newRpc(mService, maxOutstanding);
+        List<Future<byte[]>> calls = new ArrayList<Future<byte[]>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            calls.add(mRpc.call(request((char) ('a' + i)), 5000));
+        for (Future<byte[]> call : calls)
+            call.get(5, TimeUnit.SECONDS);
+        return System.nanoTime() - start;
+    }
+
+    // Answers every request line with "<id>!" after delayMillis
+    private ScheduledExecutorService startDelayedPeer(final long delayMillis) {
+        final ScheduledExecutorService responder = Executors.newScheduledThreadPool(1);
+        Thread reader = new Thread("Fake peer") {
+            public void run() {
+                try {
+                    while (true) {
+                        final String line = readLine();
+                        responder.schedule(new Runnable() {
+                            public void run() {
+                                try {
+                                    respond(line.charAt(0) + "!");
+                                } catch (IOException e) {
+                                    // Link closed by tearDown()
+                                }
+                            }
+                        }, delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                } catch (Exception e) {
+                    // Link closed by tearDown() or responder shut down
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        return responder;
+    }
+
+    private BluetoothService newService(Transport transport) {
+        return new BluetoothService(transport, new BluetoothService.Callback() {
+            public void onStateChanged(int state) {
+            }
+
+            public void onDeviceConnected(String name, String address) {
+            }
+
+            public void onDataRead(byte[] data, int length, long timestampNanos) {
+                BluetoothRpc rpc = mRpc;
+                if (rpc != null && length > 0)
+                    rpc.onDataReceived(data, length);
+            }
+        });
+    }
+
+    private BluetoothRpc newRpc(final BluetoothService service, int maxOutstanding) {
+        return new BluetoothRpc(new BluetoothRpc.RequestSender() {
+            public boolean send(byte[] request) {
+                return service.write(request, 0, request.length, BluetoothState.PRIORITY_NORMAL);
+            }
+        }, FrameAssembler.delimited((byte) '\n'), FIRST_BYTE, maxOutstanding);
+    }
+
+    private static byte[] request(char id) {
+        return (id + "?\n").getBytes();
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = mPeerIn.read();
+            if (b < 0)
+                throw new IOException("Link closed");
+            if (b == '\n')
+                return line.toString();
+            line.append((char) b);
+        }
+    }
+
+    private void respond(String line) throws IOException {
+        synchronized (mPeerOut) {
+            mPeerOut.write((line + "\n").getBytes());
+            mPeerOut.flush();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameAssemblerTest {
+    private final List<String> mFrames = new ArrayList<String>();
+    private final List<Long> mTimestamps = new ArrayList<Long>();
+    private FrameAssembler mAssembler;
+
+    @Before
+    public void setUp() {
+        mAssembler = newAssembler(FrameAssembler.delimited((byte) '\n'), 16);
+    }
+
+    @Test
+    public void joinsFramesSplitOverChunks() {
+        feed("he", 1);
+        feed("llo", 2);
+        assertEquals(0, mFrames.size());
+        feed("\nwor", 3);
+        feed("ld\n", 4);
+        assertEquals(2, mFrames.size());
+        assertEquals("hello\n", mFrames.get(0));
+        assertEquals("world\n", mFrames.get(1));
+    }
+
+    @Test
+    public void splitsSeveralFramesOfOneChunk() {
+        feed("a\nbb\nccc\nd", 1);
+        assertEquals(3, mFrames.size());
+        assertEquals("a\n", mFrames.get(0));
+        assertEquals("bb\n", mFrames.get(1));
+        assertEquals("ccc\n", mFrames.get(2));
+        feed("\n", 2);
+        assertEquals("d\n", mFrames.get(3));
+    }
+
+    @Test
+    public void stampsFrameWithTheChunkThatCompletedIt() {
+        feed("ab", 10);
+        feed("c\nd", 20);
+        feed("\n", 30);
+        assertEquals(2, mTimestamps.size());
+        assertEquals(20L, (long) mTimestamps.get(0));
+        assertEquals(30L, (long) mTimestamps.get(1));
+    }
+
+    @Test
+    public void discardsDataThatFitsNoFrame() {
+        feed("0123456789abcdefXYZ", 1);
+        assertEquals(0, mFrames.size());
+        assertEquals(16, mAssembler.getDiscardedBytes());
+        // Back in sync after the next delimiter
+        feed("\nok\n", 2);
+        assertEquals(2, mFrames.size());
+        assertEquals("XYZ\n", mFrames.get(0));
+        assertEquals("ok\n", mFrames.get(1));
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        feed("lost", 1);
+        mAssembler.reset();
+        feed("kept\n", 2);
+        assertEquals(1, mFrames.size());
+        assertEquals("kept\n", mFrames.get(0));
+    }
+
+    @Test
+    public void readsLengthPrefixedFrames() {
+        // [type : 1][length : 2][payload], length counts the payload
+        mAssembler = newAssembler(FrameAssembler.lengthPrefixed(1, 2, 3), 64);
+        byte[] data = { 7, 0, 2, 'h', 'i', 8, 0, 0, 9, 0, 1 };
+        mAssembler.feed(data, 0, 9, 1);
+        assertEquals(2, mFrames.size());
+        assertEquals(5, mFrames.get(0).length());
+        assertEquals(3, mFrames.get(1).length());
+        mAssembler.feed(data, 9, 2, 2);
+        assertEquals(2, mFrames.size());
+        mAssembler.feed(new byte[] { 'x' }, 0, 1, 3);
+        assertEquals(3, mFrames.size());
+        assertEquals(4, mFrames.get(2).length());
+    }
+
+    @Test
+    public void skipsAnnouncedFrameBeyondMaxFrameSize() {
+        mAssembler = newAssembler(FrameAssembler.lengthPrefixed(0, 1, 1), 8);
+        // 100 announces a frame of 101 bytes, 2 one of 3
+        mAssembler.feed(new byte[] { 100, 2, 'a', 'b' }, 0, 4, 1);
+        assertEquals(1, mAssembler.getDiscardedBytes());
+        assertEquals(1, mFrames.size());
+        assertEquals(3, mFrames.get(0).length());
+    }
+
+    private FrameAssembler newAssembler(FrameDecoder decoder, int maxFrameSize) {
+        return new FrameAssembler(decoder, maxFrameSize, new FrameAssembler.OnFrameReceivedListener() {
+            public void onFrameReceived(byte[] buffer, int offset, int length) {
+                mFrames.add(new String(buffer, offset, length));
+                mTimestamps.add(mAssembler.getFrameTimestamp());
+            }
+        });
+    }
+
+    private void feed(String text, long timestampNanos) {
+        byte[] data = text.getBytes();
+        mAssembler.feed(data, 0, data.length, timestampNanos);
+    }
+}
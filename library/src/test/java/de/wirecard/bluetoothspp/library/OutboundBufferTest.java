@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Holding while the service is not connected, then flushing to a peer on
+// the other end of a LoopbackTransport
+public class OutboundBufferTest {
+    private LoopbackTransport mPhone;
+    private BluetoothService mService;
+    private InputStream mPeerIn;
+
+    @Before
+    public void setUp() {
+        mPhone = new LoopbackTransport("phone");
+        mService = new BluetoothService(mPhone, new BluetoothService.Callback() {
+            public void onStateChanged(int state) {
+            }
+
+            public void onDeviceConnected(String name, String address) {
+            }
+
+            public void onDataRead(byte[] data, int length, long timestampNanos) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mService.stop();
+    }
+
+    @Test
+    public void holdsWhileNotConnected() {
+        OutboundBuffer buffer = new OutboundBuffer(1024, 10, 0);
+        assertFalse(send(buffer, "a\n"));
+        assertFalse(send(buffer, "b\n"));
+        assertEquals(2, buffer.getHeldMessages());
+        assertEquals(4, buffer.getHeldBytes());
+    }
+
+    @Test
+    public void dropsOldestBeyondMaxMessages() {
+        OutboundBuffer buffer = new OutboundBuffer(1024, 3, 0);
+        for (int i = 0; i < 5; i++)
+            send(buffer, i + "\n");
+        assertEquals(3, buffer.getHeldMessages());
+        assertEquals(2, buffer.getDroppedMessages());
+    }
+
+    @Test
+    public void dropsOldestBeyondMaxBytes() {
+        OutboundBuffer buffer = new OutboundBuffer(10, 100, 0);
+        send(buffer, "1234\n");
+        send(buffer, "5678\n");
+        send(buffer, "9\n");
+        assertEquals(2, buffer.getHeldMessages());
+        assertEquals(7, buffer.getHeldBytes());
+        assertEquals(1, buffer.getDroppedMessages());
+    }
+
+    @Test
+    public void dropsMessageLargerThanMaxBytes() {
+        OutboundBuffer buffer = new OutboundBuffer(4, 100, 0);
+        send(buffer, "a\n");
+        send(buffer, "too large\n");
+        assertEquals(1, buffer.getHeldMessages());
+        assertEquals(1, buffer.getDroppedMessages());
+    }
+
+    @Test
+    public void expiresMessagesOlderThanMaxAge() throws Exception {
+        OutboundBuffer buffer = new OutboundBuffer(1024, 10, 1);
+        send(buffer, "old\n");
+        Thread.sleep(20);
+        assertEquals(0, buffer.getHeldMessages());
+        assertEquals(1, buffer.getExpiredMessages());
+        assertEquals(0, buffer.getHeldBytes());
+    }
+
+    @Test
+    public void clearDropsWithoutCounting() {
+        OutboundBuffer buffer = new OutboundBuffer(1024, 10, 0);
+        send(buffer, "a\n");
+        buffer.clear();
+        assertEquals(0, buffer.getHeldMessages());
+        assertEquals(0, buffer.getDroppedMessages());
+    }
+
+    @Test(timeout = 10000)
+    public void flushWritesHeldMessagesInOrder() throws Exception {
+        OutboundBuffer buffer = new OutboundBuffer(1024, 3, 0);
+        for (int i = 0; i < 5; i++)
+            send(buffer, i + "\n");
+        connect();
+        buffer.flush(mService);
+        assertEquals("2", readLine());
+        assertEquals("3", readLine());
+        assertEquals("4", readLine());
+        assertEquals(3, buffer.getFlushedMessages());
+        assertEquals(0, buffer.getHeldMessages());
+        // Nothing held any more, sent right away
+        assertTrue(send(buffer, "5\n"));
+        assertEquals("5", readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void sendDuringFlushQueuesBehindHeldMessages() throws Exception {
+        OutboundBuffer buffer = new OutboundBuffer(1024 * 1024, 10000, 0);
+        for (int i = 0; i < 2000; i++)
+            send(buffer, i + "\n");
+        connect();
+        buffer.startFlush(mService);
+        send(buffer, "last\n");
+        for (int i = 0; i < 2000; i++)
+            assertEquals(String.valueOf(i), readLine());
+        assertEquals("last", readLine());
+    }
+
+    private boolean send(OutboundBuffer buffer, String text) {
+        byte[] data = text.getBytes();
+        return buffer.send(mService, data, 0, data.length, BluetoothState.PRIORITY_NORMAL);
+    }
+
+    private void connect() throws Exception {
+        mService.start(BluetoothState.DEVICE_OTHER);
+        Transport.Link peer = mPhone.attach("printer").open("phone", BluetoothState.UUID_OTHER_DEVICE);
+        peer.connect();
+        mPeerIn = peer.getInputStream();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mService.getState() != BluetoothState.STATE_CONNECTED) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Not connected");
+            Thread.sleep(1);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = mPeerIn.read();
+            if (b < 0)
+                throw new IOException("Link closed");
+            if (b == '\n')
+                return line.toString();
+            line.append((char) b);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Recovery after a restart or crash, checked by reopening the file and
+// flushing to a peer on the other end of a LoopbackTransport. Crashes are
+// simulated by patching the closed file.
+public class OutboundJournalTest {
+    private static final int CAPACITY = 4096;
+    // Records of "x\n" messages
+    private static final int RECORD_SIZE = OutboundJournal.RECORD_HEADER_SIZE + 2;
+
+    private File mFile;
+    private OutboundJournal mJournal;
+    private LoopbackTransport mPhone;
+    private BluetoothService mService;
+    private InputStream mPeerIn;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("journal", ".dat");
+        mFile.delete();
+        mJournal = new OutboundJournal(mFile, CAPACITY);
+        mPhone = new LoopbackTransport("phone");
+        mService = new BluetoothService(mPhone, new BluetoothService.Callback() {
+            public void onStateChanged(int state) {
+            }
+
+            public void onDeviceConnected(String name, String address) {
+            }
+
+            public void onDataRead(byte[] data, int length, long timestampNanos) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mService.stop();
+        mJournal.close();
+        mFile.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void keepsUnacknowledgedMessagesAcrossRestart() throws Exception {
+        append("a\n", "b\n", "c\n");
+        mJournal.acknowledge(0);
+        reopen();
+        assertEquals(2, mJournal.getPendingMessages());
+        assertEquals(2, mJournal.getLastSequence());
+        assertEquals(3, append("d\n"));
+        connect();
+        mJournal.flush(mService);
+        assertEquals("b", readLine());
+        assertEquals("c", readLine());
+        assertEquals("d", readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void skipsAcknowledgedRecordsIfTheTailWasNotMoved() throws Exception {
+        append("a\n", "b\n", "c\n");
+        mJournal.close();
+        // acknowledge(1) died after storing the tail sequence
+        patchLong(OutboundJournal.OFFSET_TAIL_SEQUENCE, 2);
+        reopen();
+        assertEquals(1, mJournal.getPendingMessages());
+        assertEquals(CAPACITY - RECORD_SIZE, mJournal.getFreeBytes());
+        connect();
+        mJournal.flush(mService);
+        append("d\n");
+        mJournal.flush(mService);
+        assertEquals("c", readLine());
+        assertEquals("d", readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void endsAtTornRecord() throws Exception {
+        append("a\n", "b\n", "c\n");
+        mJournal.close();
+        // Payload of the third record
+        patchByte(OutboundJournal.HEADER_SIZE + 2 * RECORD_SIZE + OutboundJournal.RECORD_HEADER_SIZE, 'X');
+        reopen();
+        assertEquals(2, mJournal.getPendingMessages());
+        assertEquals(2, append("d\n"));
+        connect();
+        mJournal.flush(mService);
+        assertEquals("a", readLine());
+        assertEquals("b", readLine());
+        assertEquals("d", readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void recoversAfterTheRingWrapped() throws Exception {
+        byte[] message = new byte[100];
+        message[99] = '\n';
+        // Several laps, older records stay behind the head
+        for (int i = 0; i < 200; i++) {
+            message[0] = (byte) ('0' + i % 10);
+            long sequence = mJournal.append(message, 0, message.length, BluetoothState.PRIORITY_NORMAL);
+            assertEquals(i, sequence);
+            if (i < 197)
+                mJournal.acknowledge(sequence);
+        }
+        reopen();
+        assertEquals(3, mJournal.getPendingMessages());
+        assertEquals(199, mJournal.getLastSequence());
+        connect();
+        mJournal.flush(mService);
+        assertEquals('7', readLine().charAt(0));
+        assertEquals('8', readLine().charAt(0));
+        assertEquals('9', readLine().charAt(0));
+    }
+
+    @Test
+    public void rejectsMessagesWhileFull() throws Exception {
+        byte[] message = new byte[1000];
+        long first = mJournal.append(message, 0, message.length, BluetoothState.PRIORITY_NORMAL);
+        for (int i = 0; i < 3; i++)
+            mJournal.append(message, 0, message.length, BluetoothState.PRIORITY_NORMAL);
+        assertEquals(-1, mJournal.append(message, 0, message.length, BluetoothState.PRIORITY_NORMAL));
+        assertEquals(1, mJournal.getRejectedMessages());
+        mJournal.acknowledge(first);
+        assertEquals(4, mJournal.append(message, 0, message.length, BluetoothState.PRIORITY_NORMAL));
+    }
+
+    @Test(timeout = 10000)
+    public void rewindSendsUnacknowledgedMessagesAgain() throws Exception {
+        connect();
+        append("a\n", "b\n");
+        mJournal.flush(mService);
+        assertEquals("a", readLine());
+        assertEquals("b", readLine());
+        mJournal.acknowledge(0);
+        mJournal.rewind();
+        mJournal.flush(mService);
+        assertEquals("b", readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void appendDuringBackgroundFlushIsWrittenToo() throws Exception {
+        for (int i = 0; i < 100; i++)
+            append(i + "\n");
+        connect();
+        mJournal.startFlush(mService);
+        append("last\n");
+        mJournal.startFlush(mService);
+        for (int i = 0; i < 100; i++)
+            assertEquals(String.valueOf(i), readLine());
+        assertEquals("last", readLine());
+    }
+
+    private long append(String... messages) {
+        long sequence = -1;
+        for (String message : messages) {
+            byte[] data = message.getBytes();
+            sequence = mJournal.append(data, 0, data.length, BluetoothState.PRIORITY_NORMAL);
+        }
+        return sequence;
+    }
+
+    private void reopen() throws IOException {
+        mJournal.close();
+        mJournal = new OutboundJournal(mFile, CAPACITY);
+    }
+
+    private void patchLong(long offset, long value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(offset);
+            file.writeLong(value);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void patchByte(long offset, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(offset);
+            file.write(value);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void connect() throws Exception {
+        mService.start(BluetoothState.DEVICE_OTHER);
+        Transport.Link peer = mPhone.attach("printer").open("phone", BluetoothState.UUID_OTHER_DEVICE);
+        peer.connect();
+        mPeerIn = peer.getInputStream();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mService.getState() != BluetoothState.STATE_CONNECTED) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Not connected");
+            Thread.sleep(1);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = mPeerIn.read();
+            if (b < 0)
+                throw new IOException("Link closed");
+            if (b == '\n')
+                return line.toString();
+            line.append((char) b);
+        }
+    }
+}
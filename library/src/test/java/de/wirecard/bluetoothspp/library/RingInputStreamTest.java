@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.wirecard.bluetoothspp.library;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RingInputStreamTest {
+    @Test(timeout = 10000)
+    public void passesDataInOrderAcrossWrapsWhileFull() throws Exception {
+        final RingInputStream ring = new RingInputStream(16);
+        final int total = 100000;
+        Thread producer = new Thread() {
+            public void run() {
+                byte[] chunk = new byte[7];
+                try {
+                    for (int sent = 0; sent < total; sent += chunk.length) {
+                        int n = Math.min(chunk.length, total - sent);
+                        for (int i = 0; i < n; i++)
+                            chunk[i] = (byte) (sent + i);
+                        ring.offer(chunk, 0, n);
+                    }
+                    ring.finish(null);
+                } catch (InterruptedIOException e) {
+                    // Test failed already
+                }
+            }
+        };
+        producer.start();
+        byte[] buffer = new byte[5];
+        int received = 0;
+        int n;
+        while ((n = ring.read(buffer, 0, buffer.length)) >= 0) {
+            for (int i = 0; i < n; i++)
+                assertEquals((byte) (received + i), buffer[i]);
+            received += n;
+        }
+        assertEquals(total, received);
+        producer.join();
+    }
+
+    @Test
+    public void orderlyEndAfterBufferedData() throws Exception {
+        RingInputStream ring = new RingInputStream(16);
+        ring.offer("abc".getBytes(), 0, 3);
+        ring.finish(null);
+        assertEquals(3, ring.available());
+        byte[] buffer = new byte[8];
+        assertEquals(3, ring.read(buffer, 0, 8));
+        assertEquals("abc", new String(buffer, 0, 3));
+        assertEquals(-1, ring.read());
+    }
+
+    @Test
+    public void lostConnectionFailsAfterBufferedData() throws Exception {
+        RingInputStream ring = new RingInputStream(16);
+        ring.offer("ab".getBytes(), 0, 2);
+        ring.finish(new IOException("link lost"));
+        assertEquals('a', ring.read());
+        assertEquals('b', ring.read());
+        try {
+            ring.read();
+            fail("Expected the error of the connection");
+        } catch (IOException e) {
+            assertEquals("link lost", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void skipsBufferedBytes() throws Exception {
+        RingInputStream ring = new RingInputStream(16);
+        ring.offer("abcdef".getBytes(), 0, 6);
+        assertEquals(4, ring.skip(4));
+        assertEquals('e', ring.read());
+        assertEquals(0, ring.skip(-1));
+    }
+
+    @Test(timeout = 10000)
+    public void closeReleasesBlockedWriterAndFailsReads() throws Exception {
+        final RingInputStream ring = new RingInputStream(16);
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    ring.offer(new byte[64], 0, 64);
+                } catch (InterruptedIOException e) {
+                    // Not expected, the test sees the thread still alive
+                }
+            }
+        };
+        producer.start();
+        while (ring.available() < 16)
+            Thread.sleep(1);
+        ring.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        try {
+            ring.read();
+            fail("Expected a closed stream");
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void interruptEndsBlockedRead() throws Exception {
+        final RingInputStream ring = new RingInputStream(16);
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    ring.read();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        reader.interrupt();
+        reader.join(5000);
+        assertTrue(error[0] instanceof InterruptedIOException);
+    }
+}